@@ -0,0 +1,102 @@
+package cs451;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Agreements per second through the lattice workers, fed synthetic delivered messages for a
+ * three node system: our proposal, the two others' proposals and their ACKs. Sends go to a
+ * transport that drops them, so only the worker logic is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConsensusWorkerBench {
+    private static final int BATCH = 64;
+    private static final short NODES = 3;
+    private static final short MYSELF = 1;
+
+    @Param({"8", "256"})
+    private int ds;
+
+    private ConsensusData.ConsensusStage stage;
+    private Thread[] threads;
+    private IntSet[] proposals;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        Map<Short, NodeAddress> nodes = new HashMap<>();
+        for (short i = 1; i <= NODES; i++) {
+            NodeAddress n = new NodeAddress();
+            n.define(Short.toString(i), "127.0.0.1", Integer.toString(11000 + i));
+            nodes.put(i, n);
+        }
+        stage = new ConsensusData.ConsensusStage(MYSELF, nodes, (m, dest) -> true);
+        proposals = new IntSet[NODES + 1];
+        for (int p = 1; p <= NODES; p++) {
+            int[] vals = new int[ds];
+            for (int i = 0; i < ds; i++) {
+                vals[i] = i * NODES + p;
+            }
+            proposals[p] = IntSet.of(vals);
+        }
+        ConsensusWorker[] workers = stage.getWorkers();
+        threads = new Thread[workers.length];
+        for (int i = 0; i < workers.length; i++) {
+            threads[i] = new Thread(workers[i], "Bench Worker " + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (Thread t : threads) {
+            t.interrupt();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void agreements() throws InterruptedException {
+        int first = next;
+        for (int ag = first; ag < first + BATCH; ag++) {
+            ConsensusWorker w = stage.workerFor(ag);
+            stage.openAgreement(ag);
+            w.submit(ag, proposals[MYSELF]);
+            for (short peer = 2; peer <= NODES; peer++) {
+                w.deliver(new NetMessage(NetMessage.EchoMarker.ECHOSTR, peer, peer, ag, 1,
+                        NetMessage.PayLoadKind.PROPOSAL, proposals[peer]));
+                w.deliver(new NetMessage(NetMessage.EchoMarker.ECHOSTR, peer, peer, ag, 1,
+                        NetMessage.PayLoadKind.ACK, null));
+            }
+        }
+        // a decision per agreement
+        for (int i = 0; i < BATCH; i++) {
+            stage.getOutcomes().take();
+        }
+        next = first + BATCH;
+        // as if every node decided them: the workers drop their state on the next batch
+        stage.getWindowBottom().set(next);
+        stage.getToBroadcast().clear();
+    }
+}
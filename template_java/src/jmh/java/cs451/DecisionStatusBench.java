@@ -0,0 +1,75 @@
+package cs451;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The acceptor's set operations on every PROPOSAL. Sets hold ds values drawn from [0, spread * ds),
+ * so a small spread gives dense (bitmap) sets and a large one sparse (sorted array) sets.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecisionStatusBench {
+    @Param({"16", "256", "4096"})
+    private int ds;
+
+    @Param({"2", "1000"})
+    private int spread;
+
+    private ConsensusData.DecisionStatus status;
+    private IntSet accepted;
+    private IntSet superset;
+    private IntSet overlapping;
+
+    @Setup
+    public void setup() {
+        Random rnd = new Random(451);
+        accepted = randomSet(rnd);
+        superset = accepted.union(randomSet(rnd));
+        overlapping = randomSet(rnd);
+        status = new ConsensusData.DecisionStatus(1, IntSet.EMPTY, 8);
+        status.redefineAccepted(accepted);
+    }
+
+    private IntSet randomSet(Random rnd) {
+        int[] vals = new int[ds];
+        for (int i = 0; i < ds; i++) {
+            vals[i] = rnd.nextInt(spread * ds);
+        }
+        return IntSet.fromUnsorted(vals, vals.length);
+    }
+
+    // the ACK path: the proposal covers everything accepted
+    @Benchmark
+    public boolean subsetHit() {
+        return status.acceptedSubsetOf(superset);
+    }
+
+    // the NACK path check: the proposal misses some accepted values
+    @Benchmark
+    public boolean subsetMiss() {
+        return status.acceptedSubsetOf(overlapping);
+    }
+
+    @Benchmark
+    public boolean expandAccepted() {
+        status.redefineAccepted(accepted);
+        return status.expandAccepted(overlapping);
+    }
+}
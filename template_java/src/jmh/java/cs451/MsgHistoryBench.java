@@ -0,0 +1,80 @@
+package cs451;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Duplicate suppression of the hashed link mode. The link thread records and looks up messages
+ * for a moving window of agreements while the coordinating stage flushes finished ones from
+ * another thread, which is the only contention CompactMsgHistory sees in production.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MsgHistoryBench {
+    @Param({"8", "128"})
+    private int nodes;
+
+    @Param({"8", "256"})
+    private int window;
+
+    private CompactMsgHistory history;
+    // highest agreement the link thread reached, read by the flushing thread
+    private volatile int reached;
+
+    // link thread only
+    private int agreement;
+    private short source = 1;
+    private int kind;
+    private int propNum = 1;
+
+    @Setup
+    public void setup() {
+        history = new CompactMsgHistory(nodes, window);
+        reached = 0;
+        agreement = 0;
+    }
+
+    // One fresh message and one duplicate lookup per call: cycles sources, kinds and rounds,
+    // moving on to the next agreement once each source sent a few rounds of every kind
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public boolean link() {
+        NetMessage.PayLoadKind k = NetMessage.PayLoadKind.vals[kind];
+        if (++kind == NetMessage.PayLoadKind.vals.length) {
+            kind = 0;
+            if (++source > nodes) {
+                source = 1;
+                if (++propNum > 3) {
+                    propNum = 1;
+                    reached = ++agreement;
+                }
+            }
+        }
+        return history.record(agreement, source, k, propNum) & history.known(agreement, source, k, propNum);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public void flush() {
+        history.flush(Integer.max(0, reached - window / 2));
+    }
+}
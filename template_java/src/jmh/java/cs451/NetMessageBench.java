@@ -0,0 +1,64 @@
+package cs451;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Wire encoding of a proposal carrying valueCount values, both ways. A message caches its
+ * encoding, so serialize() encodes a fresh one every time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NetMessageBench {
+    @Param({"0", "8", "64", "1024"})
+    private int valueCount;
+
+    private IntSet values;
+    private byte[] wire;
+
+    @Setup
+    public void setup() {
+        int[] vals = new int[valueCount];
+        for (int i = 0; i < valueCount; i++) {
+            vals[i] = i * 3;
+        }
+        values = IntSet.of(vals);
+        wire = proposal().serialize();
+    }
+
+    private NetMessage proposal() {
+        return new NetMessage(NetMessage.EchoMarker.ECHOSTR, (short) 1, (short) 1, 42, 7,
+                NetMessage.PayLoadKind.PROPOSAL, values);
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return proposal().serialize();
+    }
+
+    @Benchmark
+    public NetMessage deserialize() {
+        return NetMessage.deserialize(wire);
+    }
+
+    // deserialize as the lattice layer sees it: values decoded too
+    @Benchmark
+    public IntSet deserializeValues() {
+        return NetMessage.deserialize(wire).getVals();
+    }
+}
@@ -0,0 +1,163 @@
+package cs451;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sizes the number of concurrently open agreements from what the decisions actually show.
+ * Every epoch it compares throughput and mean decision latency against the previous epoch:
+ * while the window was the bottleneck it keeps growing, steps back once growth stops paying
+ * (the knee of the throughput curve) and halves when latency blows up, e.g. under loss.
+ * The window never leaves [LA_MIN_WINDOW, LA_MAX_WINDOW]. The current size and the reason for
+ * the last resize can be read from any thread; samples come from the coordinating stage only.
+ */
+public class AgreementWindow {
+    public enum ResizeReason {
+        INITIAL, PROBE_UP, KNEE_BACKOFF, LATENCY_BACKOFF, HARD_CAP
+    }
+
+    private static final long EPOCH_NANOS = TimeUnit.MILLISECONDS.toNanos(GlobalParams.LA_WINDOW_EPOCH);
+    private static final long RECHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(GlobalParams.LA_ROOM_RECHECK);
+
+    private volatile int current;
+    private volatile ResizeReason lastReason = ResizeReason.INITIAL;
+    private volatile int resizes = 0;
+    private final long[] submittedAt;
+
+    // coordinating stage only
+    private long epochStart;
+    private int epochDecisions = 0;
+    private long epochLatencySum = 0;
+    private volatile boolean epochLimited = false;
+    private double lastThroughput = 0;
+    private long minLatency = Long.MAX_VALUE;
+    private int previousSize;
+    private boolean lastWasGrowth = false;
+    private int holdEpochs = 0;
+
+    private final Object room = new Object();
+    // guarded by room: bumped by every decision and newly opened agreement, so a refused proposer
+    // can tell whether one came
+    private long roomTicket = 0;
+    private final Metrics.Histogram decisionLatency = Metrics.global().histogram("la.decision_latency_us");
+
+    public AgreementWindow(long now) {
+        this.current = clamp(GlobalParams.MAX_OUT_OF_ORDER_DELIVERY);
+        this.previousSize = current;
+        this.submittedAt = new long[Integer.highestOneBit(GlobalParams.LA_MAX_WINDOW * 2 - 1) << 1];
+        this.epochStart = now;
+        Metrics.global().gauge("la.window.limit", this::current);
+        Metrics.global().gauge("la.window.resizes", this::resizeCount);
+    }
+
+    public int current() {
+        return current;
+    }
+
+    public ResizeReason lastResizeReason() {
+        return lastReason;
+    }
+
+    public int resizeCount() {
+        return resizes;
+    }
+
+    // The ring holds twice the hard cap, so only an agreement stuck far behind the others can
+    // have its slot reused, which skews that one latency sample
+    public void onSubmit(int agreementId, long now) {
+        submittedAt[agreementId & (submittedAt.length - 1)] = now;
+    }
+
+    public void onRefused() {
+        epochLimited = true;
+    }
+
+    // Taken before submitting, so that a decision between the refusal and awaitRoom is not missed
+    public long roomTicket() {
+        synchronized (room) {
+            return roomTicket;
+        }
+    }
+
+    // Blocks a refused proposer until a decision or an opened agreement since the ticket was taken
+    // may have let it in; rechecks after LA_ROOM_RECHECK ms regardless
+    public void awaitRoom(long ticket) throws InterruptedException {
+        long deadline = System.nanoTime() + RECHECK_NANOS;
+        synchronized (room) {
+            long left;
+            while (roomTicket == ticket && (left = deadline - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(room, left);
+            }
+        }
+    }
+
+    // A peer's proposal may open the very agreement a refused proposer is waiting to submit
+    public void onOpened() {
+        signalRoom();
+    }
+
+    public void onDecided(int agreementId, long now) {
+        long submitted = submittedAt[agreementId & (submittedAt.length - 1)];
+        if (submitted != 0) {
+            epochLatencySum += now - submitted;
+            epochDecisions++;
+            decisionLatency.record(TimeUnit.NANOSECONDS.toMicros(now - submitted));
+        }
+        signalRoom();
+        if (now - epochStart >= EPOCH_NANOS && epochDecisions > 0) {
+            endEpoch(now);
+        }
+    }
+
+    private void signalRoom() {
+        synchronized (room) {
+            roomTicket++;
+            room.notifyAll();
+        }
+    }
+
+    private void endEpoch(long now) {
+        double throughput = epochDecisions / (double) (now - epochStart);
+        long latency = epochLatencySum / epochDecisions;
+        minLatency = Long.min(minLatency, latency);
+        int size = current;
+        if (latency > GlobalParams.LA_WINDOW_LATENCY_FACTOR * minLatency && size > GlobalParams.LA_MIN_WINDOW) {
+            resize(size / 2, ResizeReason.LATENCY_BACKOFF);
+            holdEpochs = GlobalParams.LA_WINDOW_HOLD_EPOCHS;
+            minLatency = latency; // the path got slower, re-learn its floor
+        } else if (lastWasGrowth && throughput < lastThroughput * (1 + GlobalParams.LA_WINDOW_MIN_GAIN)) {
+            resize(previousSize, ResizeReason.KNEE_BACKOFF);
+            holdEpochs = GlobalParams.LA_WINDOW_HOLD_EPOCHS;
+        } else if (epochLimited && holdEpochs-- <= 0) {
+            int grown = Integer.max(size + 1, size + size / 2);
+            resize(grown, grown > GlobalParams.LA_MAX_WINDOW ? ResizeReason.HARD_CAP : ResizeReason.PROBE_UP);
+        } else {
+            lastWasGrowth = false;
+        }
+        lastThroughput = throughput;
+        epochStart = now;
+        epochDecisions = 0;
+        epochLatencySum = 0;
+        epochLimited = false;
+    }
+
+    private void resize(int target, ResizeReason reason) {
+        int size = current;
+        int next = clamp(target);
+        lastWasGrowth = next > size;
+        previousSize = size;
+        if (next != size) {
+            current = next;
+            lastReason = reason;
+            resizes++;
+        }
+    }
+
+    private static int clamp(int w) {
+        return Integer.min(GlobalParams.LA_MAX_WINDOW, Integer.max(GlobalParams.LA_MIN_WINDOW, w));
+    }
+
+    @Override
+    public String toString() {
+        return "AgreementWindow [current=" + current + ", lastReason=" + lastReason + ", resizes=" + resizes + "]";
+    }
+}
@@ -1,33 +1,17 @@
 package cs451;
 
-import java.net.DatagramSocket;
-import java.util.concurrent.ConcurrentLinkedQueue;
-
 public class ChannelState {
-    private final DatagramSocket sock;
-    private final ConcurrentMsgHistory ackedMsgs;
-    private final ConcurrentLinkedQueue<NetMessage.NetCarrier> outboundQueue;
+    private final PerfectLinks link;
 
-    public ChannelState(DatagramSocket socket,
-                        ConcurrentMsgHistory acked,
-                        ConcurrentLinkedQueue<NetMessage.NetCarrier> toSendQueue) {
-        if (socket == null || acked == null || toSendQueue == null) {
+    public ChannelState(PerfectLinks pl) {
+        if (pl == null) {
             throw new IllegalArgumentException("Null args in ChannelState");
         }
-        this.sock = socket;
-        this.ackedMsgs = acked;
-        this.outboundQueue = toSendQueue;
-    }
-
-    public DatagramSocket getSocket() {
-        return sock;
-    }
-
-    public ConcurrentMsgHistory getAckSet() {
-        return ackedMsgs;
+        this.link = pl;
     }
 
-    public ConcurrentLinkedQueue<NetMessage.NetCarrier> getOutbound() {
-        return outboundQueue;
+    // The single link (and socket) shared by the initiator and follower sides
+    public PerfectLinks getLink() {
+        return link;
     }
 }
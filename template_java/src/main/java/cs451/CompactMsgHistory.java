@@ -0,0 +1,117 @@
+package cs451;
+
+import java.util.Arrays;
+
+/**
+ * Exact duplicate suppression for the hashed link mode. Per agreement it keeps, for every
+ * [sourceId][payloadKind], the highest proposal number delivered; anything at or below it is a
+ * duplicate or a stale round the lattice layer would ignore anyway. Agreements live in a ring of
+ * primitive slots reclaimed once flush() moves the watermark past them, so memory follows the
+ * agreement window rather than the traffic. Below the watermark nothing is tracked and everything
+ * passes: a process suspected while it was only slow may still propose there, and the lattice
+ * layer answers those proposals from what it accepted and ignores the rest. record/known run on
+ * the link thread only; flush may be called from any thread.
+ */
+public class CompactMsgHistory {
+    private static final int FREE = -1;
+    private static final int NONE = Integer.MIN_VALUE;
+    private static final int KINDS = NetMessage.PayLoadKind.vals.length;
+
+    private final int stride;
+    private int[] slotAgreement;
+    private int[] highest;
+    private volatile int watermark = 0;
+
+    public CompactMsgHistory(int nodes, int agreements) {
+        if (nodes <= 0 || agreements <= 0) {
+            throw new IllegalArgumentException("CompactMsgHistory needs positive sizes");
+        }
+        this.stride = (nodes + 1) * KINDS;
+        int slots = Integer.highestOneBit(agreements * 2 - 1) << 1;
+        this.slotAgreement = new int[slots];
+        Arrays.fill(slotAgreement, FREE);
+        this.highest = new int[slots * stride];
+    }
+
+    // Records the message, returns false if it was delivered before; flushed agreements always pass
+    public boolean record(int agreementId, short sourceId, NetMessage.PayLoadKind kind, int propNum) {
+        if (agreementId < watermark) {
+            return true;
+        }
+        int at = claimSlot(agreementId) * stride + cell(sourceId, kind);
+        if (highest[at] != NONE && propNum <= highest[at]) {
+            return false;
+        }
+        highest[at] = propNum;
+        return true;
+    }
+
+    public boolean known(int agreementId, short sourceId, NetMessage.PayLoadKind kind, int propNum) {
+        if (agreementId < watermark) {
+            return false;
+        }
+        int slot = findSlot(agreementId);
+        if (slot < 0) {
+            return false;
+        }
+        int seen = highest[slot * stride + cell(sourceId, kind)];
+        return seen != NONE && propNum <= seen;
+    }
+
+    // Every live process finished the agreements below agreementId: they are no longer tracked
+    public void flush(int agreementId) {
+        if (agreementId > watermark) {
+            watermark = agreementId;
+        }
+    }
+
+    private int cell(short sourceId, NetMessage.PayLoadKind kind) {
+        if (sourceId <= 0 || sourceId * KINDS >= stride) {
+            throw new IllegalArgumentException("Unknown source " + sourceId);
+        }
+        return sourceId * KINDS + kind.ordinal();
+    }
+
+    private int findSlot(int agreementId) {
+        int idx = agreementId & (slotAgreement.length - 1);
+        return slotAgreement[idx] == agreementId ? idx : -1;
+    }
+
+    private int claimSlot(int agreementId) {
+        int idx = agreementId & (slotAgreement.length - 1);
+        int owner = slotAgreement[idx];
+        if (owner == agreementId) {
+            return idx;
+        }
+        if (owner == FREE || owner < watermark) {
+            slotAgreement[idx] = agreementId;
+            Arrays.fill(highest, idx * stride, (idx + 1) * stride, NONE);
+            return idx;
+        }
+        // two live agreements share the slot: the window outgrew the ring
+        grow();
+        return claimSlot(agreementId);
+    }
+
+    private void grow() {
+        int[] oldAgreements = slotAgreement;
+        int[] oldHighest = highest;
+        slotAgreement = new int[oldAgreements.length * 2];
+        Arrays.fill(slotAgreement, FREE);
+        highest = new int[slotAgreement.length * stride];
+        int mark = watermark;
+        for (int i = 0; i < oldAgreements.length; i++) {
+            int ag = oldAgreements[i];
+            if (ag != FREE && ag >= mark) {
+                int idx = ag & (slotAgreement.length - 1);
+                slotAgreement[idx] = ag;
+                System.arraycopy(oldHighest, i * stride, highest, idx * stride, stride);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CompactMsgHistory [slots=" + slotAgreement.length + ", watermark=" + watermark + "]";
+    }
+}
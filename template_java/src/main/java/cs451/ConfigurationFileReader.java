@@ -1,16 +1,20 @@
 package cs451;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.Closeable;
 import java.io.IOException;
-import java.util.*;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
 
 public class ConfigurationFileReader {
 
     private String configPath;
+    private NestedConfig parsed;
 
-    public boolean setConfigPath(String path) {
+    public synchronized boolean setConfigPath(String path) {
         this.configPath = path;
+        this.parsed = null;
         return true;
     }
 
@@ -18,35 +22,22 @@ public class ConfigurationFileReader {
         return configPath;
     }
 
-    public NestedConfig obtainNestedConfig() {
-        try (BufferedReader rd = new BufferedReader(new FileReader(configPath))) {
-            List<String[]> data = new ArrayList<>();
-            String line;
-            while ((line = rd.readLine()) != null) {
-                data.add(line.split(" "));
-            }
-            if (!data.isEmpty() && data.get(0) != null && data.get(0).length == 3) {
-                int p = Integer.parseInt(data.get(0)[0]);
-                int vs = Integer.parseInt(data.get(0)[1]);
-                int ds = Integer.parseInt(data.get(0)[2]);
-                if (data.size() - 1 != p) {
-                    throw new IllegalArgumentException("Unexpected number of proposals in config");
-                }
-                List<Set<Integer>> proposals = new ArrayList<>(p);
-                for (int i = 1; i <= p; ++i) {
-                    if (data.get(i).length <= vs) {
-                        Set<Integer> proposal = new HashSet<>();
-                        for (String elem : data.get(i)) {
-                            proposal.add(Integer.parseInt(elem));
-                        }
-                        proposals.add(proposal);
-                    } else {
-                        throw new IllegalArgumentException("Line " + i + " has more values than expected");
-                    }
-                }
-                return new NestedConfig(p, vs, ds, proposals);
+    // Parsed on first use and shared from then on; proposals are only read through openProposals()
+    public synchronized NestedConfig obtainNestedConfig() {
+        if (parsed == null) {
+            parsed = parseHeader();
+        }
+        return parsed;
+    }
+
+    private NestedConfig parseHeader() {
+        Path path = Paths.get(configPath);
+        try (MappedIntReader rd = new MappedIntReader(path, 0)) {
+            int[] header = new int[3];
+            if (rd.readLine(header) == 3) {
+                return new NestedConfig(header[0], header[1], header[2], path, rd.position());
             }
-        } catch (NumberFormatException e) {
+        } catch (IllegalArgumentException e) {
             System.err.println("Parameter parsing error in config");
             e.printStackTrace();
         } catch (IOException e) {
@@ -56,23 +47,90 @@ public class ConfigurationFileReader {
         return null;
     }
 
+    /**
+     * Proposals in file order, parsed one line at a time as they are asked for. A file with fewer
+     * than p proposal lines, or anything but blank lines after the p-th, is rejected with an
+     * IllegalArgumentException, the first when the missing line is asked for, the second along
+     * with the last proposal.
+     */
+    public static class ProposalStream implements Closeable {
+        private final MappedIntReader reader;
+        private final int p;
+        private final int[] line;
+        private int read = 0;
+
+        private ProposalStream(MappedIntReader reader, int p, int vs) {
+            this.reader = reader;
+            this.p = p;
+            this.line = new int[vs];
+        }
+
+        public boolean hasNext() {
+            return read < p;
+        }
+
+        public IntSet next() throws IOException {
+            if (!hasNext()) {
+                throw new NoSuchElementException("All " + p + " proposals were read");
+            }
+            int count;
+            try {
+                count = reader.readLine(line);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Line " + (read + 1) + ": " + e.getMessage(), e);
+            }
+            if (count < 0) {
+                throw new IllegalArgumentException("Mismatch between p and proposals count: only " + read
+                        + " of " + p + " proposals in config");
+            }
+            read++;
+            IntSet proposal = IntSet.fromUnsorted(Arrays.copyOf(line, count), count);
+            if (read == p) {
+                rejectTrailingLines();
+            }
+            return proposal;
+        }
+
+        private void rejectTrailingLines() throws IOException {
+            int count;
+            do {
+                try {
+                    count = reader.readLine(line);
+                } catch (IllegalArgumentException e) {
+                    count = 1;
+                }
+                if (count > 0) {
+                    throw new IllegalArgumentException("Mismatch between p and proposals count: more than " + p
+                            + " proposals in config");
+                }
+            } while (count == 0);
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
     public static class NestedConfig {
         private final int p;
         private final int vs;
         private final int ds;
-        private final List<Set<Integer>> props;
+        private final Path source;
+        private final long proposalsOffset;
 
-        public NestedConfig(int p, int vs, int ds, List<Set<Integer>> props) {
-            if (props == null) {
+        public NestedConfig(int p, int vs, int ds, Path source, long proposalsOffset) {
+            if (source == null) {
                 throw new IllegalArgumentException("Null proposals not allowed");
             }
-            if (props.size() != p) {
-                throw new IllegalArgumentException("Mismatch between p and proposals count");
+            if (p < 0 || vs < 0 || ds < 0) {
+                throw new IllegalArgumentException("Negative parameter in config");
             }
             this.p = p;
             this.vs = vs;
             this.ds = ds;
-            this.props = props;
+            this.source = source;
+            this.proposalsOffset = proposalsOffset;
         }
 
         public int getP() {
@@ -87,13 +145,14 @@ public class ConfigurationFileReader {
             return ds;
         }
 
-        public List<Set<Integer>> getProposals() {
-            return props;
+        // Each call reads the proposals again from the start
+        public ProposalStream openProposals() throws IOException {
+            return new ProposalStream(new MappedIntReader(source, proposalsOffset), p, vs);
         }
 
         @Override
         public String toString() {
-            return "NestedConfig [p=" + p + ", vs=" + vs + ", ds=" + ds + ", proposals=" + props + "]";
+            return "NestedConfig [p=" + p + ", vs=" + vs + ", ds=" + ds + ", proposals=" + source + "]";
         }
     }
 }
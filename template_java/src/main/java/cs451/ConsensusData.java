@@ -1,12 +1,10 @@
 package cs451;
 
-import java.util.Collections;
-import java.util.Set;
+import java.util.BitSet;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ConcurrentSkipListMap;
 
 /**
  * This class merges the original logic of AgreementState and LatticeState into a single holder.
@@ -15,138 +13,265 @@ import java.util.concurrent.ConcurrentSkipListMap;
  */
 public class ConsensusData {
 
-    // Renamed from AgreementState to DecisionStatus
+    // Renamed from AgreementState to DecisionStatus; owned and only touched by one ConsensusWorker
     public static class DecisionStatus {
         // Tracks if we are still active on this agreement
-        private final AtomicBoolean activeFlag;
-        private final AtomicInteger acks;
-        private final AtomicInteger nacks;
-        private final AtomicInteger decidedCount;
-        private final AtomicInteger currentProposalNum;
-        private final ConcurrentHashMap.KeySetView<Integer, Boolean> proposedSet;
-        private final ConcurrentHashMap.KeySetView<Integer, Boolean> acceptedSet;
-
-        public DecisionStatus(int proposalNum, Set<Integer> proposedVals) {
-            this.activeFlag = new AtomicBoolean(true);
-            this.acks = new AtomicInteger(0);
-            this.nacks = new AtomicInteger(0);
-            this.decidedCount = new AtomicInteger(0);
-            this.currentProposalNum = new AtomicInteger(proposalNum);
-            this.proposedSet = ConcurrentHashMap.newKeySet(proposedVals.size());
-            for (int v : proposedVals) {
-                this.proposedSet.add(v);
-            }
-            this.acceptedSet = ConcurrentHashMap.newKeySet(proposedVals.size());
+        private boolean activeFlag;
+        private int acks;
+        private int nacks;
+        private int currentProposalNum;
+        // rounds this process proposed in: the proposal number may have been seeded by a peer's
+        private int roundsProposed;
+        private IntSet proposedSet;
+        private IntSet acceptedSet;
+        // proposer side: the set broadcast in the current round, and who has answered that round
+        private IntSet lastBroadcast = IntSet.EMPTY;
+        private final BitSet responded = new BitSet();
+        // acceptor side: latest full proposal seen from each proposer, the base of its next delta;
+        // allocated on the first one, dropped on retire()
+        private final int nodes;
+        private IntSet[] knownProposals;
+        private int[] knownProposalNums;
+
+        public DecisionStatus(int proposalNum, IntSet proposedVals, int nodes) {
+            this.activeFlag = true;
+            this.acks = 0;
+            this.nacks = 0;
+            this.currentProposalNum = proposalNum;
+            this.proposedSet = proposedVals;
+            this.acceptedSet = IntSet.EMPTY;
+            this.nodes = nodes;
         }
 
-        public synchronized void redefineProposals(Set<Integer> newValues) {
-            this.proposedSet.clear();
-            this.proposedSet.addAll(newValues);
+        public void redefineProposals(IntSet newValues) {
+            this.proposedSet = newValues;
         }
 
-        public synchronized void redefineAccepted(Set<Integer> newAccepted) {
-            this.acceptedSet.clear();
-            this.acceptedSet.addAll(newAccepted);
+        public void redefineAccepted(IntSet newAccepted) {
+            this.acceptedSet = newAccepted;
         }
 
-        public Set<Integer> viewProposed() {
-            return Collections.unmodifiableSet(this.proposedSet);
+        public IntSet viewProposed() {
+            return this.proposedSet;
         }
 
-        public Set<Integer> viewAccepted() {
-            return Collections.unmodifiableSet(this.acceptedSet);
+        public IntSet viewAccepted() {
+            return this.acceptedSet;
         }
 
-        public synchronized boolean expandProposed(Set<Integer> moreProposed) {
-            return this.proposedSet.addAll(Collections.unmodifiableSet(moreProposed));
+        public boolean expandProposed(IntSet moreProposed) {
+            IntSet joined = proposedSet.union(moreProposed);
+            boolean changed = joined != proposedSet;
+            proposedSet = joined;
+            return changed;
         }
 
-        public synchronized boolean expandAccepted(Set<Integer> moreAccepted) {
-            return this.acceptedSet.addAll(Collections.unmodifiableSet(moreAccepted));
+        public boolean expandAccepted(IntSet moreAccepted) {
+            IntSet joined = acceptedSet.union(moreAccepted);
+            boolean changed = joined != acceptedSet;
+            acceptedSet = joined;
+            return changed;
         }
 
-        public synchronized boolean acceptedSubsetOf(Set<Integer> proposed) {
+        public boolean acceptedSubsetOf(IntSet proposed) {
             return proposed.containsAll(acceptedSet);
         }
 
+        // Starts a round: later answers are matched against this set
+        public void recordBroadcast(IntSet sent) {
+            this.lastBroadcast = sent;
+            this.responded.clear();
+        }
+
+        public IntSet lastBroadcast() {
+            return lastBroadcast;
+        }
+
+        public void markResponded(short node) {
+            responded.set(node);
+        }
+
+        // A node that answered the current round holds its full proposal as a delta base
+        public boolean hasResponded(short node) {
+            return responded.get(node);
+        }
+
+        public void rememberProposal(short source, int proposalNum, IntSet vals) {
+            if (knownProposals == null) {
+                knownProposals = new IntSet[nodes + 1];
+                knownProposalNums = new int[nodes + 1];
+            }
+            if (knownProposals[source] == null || proposalNum > knownProposalNums[source]) {
+                knownProposals[source] = vals;
+                knownProposalNums[source] = proposalNum;
+            }
+        }
+
+        // A later proposal of source arrived first: this one is from a round it left behind
+        public boolean supersededProposal(short source, int proposalNum) {
+            return knownProposals != null && knownProposals[source] != null
+                    && knownProposalNums[source] >= proposalNum;
+        }
+
+        // Full proposal number proposalNum of source, or null if it was never seen here
+        public IntSet proposalBase(short source, int proposalNum) {
+            return knownProposals != null && knownProposals[source] != null
+                    && knownProposalNums[source] == proposalNum ? knownProposals[source] : null;
+        }
+
         public boolean isActive() {
-            return activeFlag.get();
+            return activeFlag;
         }
 
         public void deactivate() {
-            activeFlag.set(false);
+            activeFlag = false;
+        }
+
+        // Below the window bottom only what was accepted is still needed: drops the proposer's sets
+        // and the delta bases, a late delta is then answered with the whole accepted set
+        public void retire() {
+            proposedSet = IntSet.EMPTY;
+            lastBroadcast = IntSet.EMPTY;
+            knownProposals = null;
+            knownProposalNums = null;
         }
 
         public int readAcks() {
-            return acks.get();
+            return acks;
         }
 
         public int readNacks() {
-            return nacks.get();
+            return nacks;
         }
 
         public void clearAcks() {
-            acks.set(0);
+            acks = 0;
         }
 
         public void clearNacks() {
-            nacks.set(0);
+            nacks = 0;
         }
 
-        public synchronized void incAcks() {
-            acks.incrementAndGet();
+        public void incAcks() {
+            acks++;
         }
 
-        public synchronized void incNacks() {
-            nacks.incrementAndGet();
+        public void incNacks() {
+            nacks++;
         }
 
-        public int getDecisionsCount() {
-            return decidedCount.get();
+        public int currentProposalNumber() {
+            return currentProposalNum;
         }
 
-        public synchronized void incDecisions() {
-            decidedCount.incrementAndGet();
+        public void bumpProposalNumber() {
+            currentProposalNum++;
         }
 
-        public int currentProposalNumber() {
-            return currentProposalNum.get();
+        public void startRounds() {
+            roundsProposed = 1;
+        }
+
+        public void countRound() {
+            roundsProposed++;
         }
 
-        public synchronized void bumpProposalNumber() {
-            currentProposalNum.incrementAndGet();
+        public int roundsProposed() {
+            return roundsProposed;
         }
 
         @Override
         public String toString() {
             return "DecisionStatus [active=" + activeFlag + ", ackCount=" + acks + ", nackCount=" + nacks
-                    + ", decidedCount=" + decidedCount + ", currentPropNum=" + currentProposalNum
+                    + ", currentPropNum=" + currentProposalNum
                     + ", proposedVals=" + proposedSet + ", acceptedVals=" + acceptedSet + "]";
         }
     }
 
-    // Replaces LatticeState (renamed to ConsensusStage)
+    // What a worker reports to the coordinating stage: a local decision
+    public static class AgreementEvent {
+        private final int agreementId;
+        private final IntSet decided;
+
+        private AgreementEvent(int agId, IntSet vals) {
+            this.agreementId = agId;
+            this.decided = vals;
+        }
+
+        public static AgreementEvent decided(int agId, IntSet vals) {
+            if (vals == null) {
+                throw new IllegalArgumentException("Null decision");
+            }
+            return new AgreementEvent(agId, vals);
+        }
+
+        public int getAgreementId() {
+            return agreementId;
+        }
+
+        public IntSet getDecided() {
+            return decided;
+        }
+    }
+
+    // Replaces LatticeState (renamed to ConsensusStage); agreements are striped over the workers by id
     public static class ConsensusStage {
-        private final ConcurrentSkipListMap<Integer, DecisionStatus> allAgreements;
+        private final ConsensusWorker[] workers;
+        private final ConcurrentHashMap.KeySetView<Integer, Boolean> openAgreements;
         private final AtomicInteger winSize;
         private final AtomicInteger bottomWindow;
-        private final ConcurrentLinkedQueue<NetMessage> queueToBroadcast;
-        private final ConcurrentLinkedQueue<NetMessage> queueToDeliver;
+        // every process, suspected ones included, decided the agreements below it
+        private final AtomicInteger confirmedBottom;
+        // this process decided every agreement below it
+        private final AtomicInteger decidedBelow;
+        private final LinkedBlockingQueue<NetMessage> queueToBroadcast;
+        private final LinkedBlockingQueue<AgreementEvent> outcomes;
+        private final AgreementWindow window;
+
+        public ConsensusStage(short myId, Map<Short, NodeAddress> nodes, SharedInterfaces.MsgTransport link) {
+            this(myId, nodes, link, System.nanoTime());
+        }
+
+        public ConsensusStage(short myId, Map<Short, NodeAddress> nodes, SharedInterfaces.MsgTransport link, long now) {
+            this.openAgreements = ConcurrentHashMap.newKeySet();
+            this.winSize = new AtomicInteger(0);
+            this.bottomWindow = new AtomicInteger(0);
+            this.confirmedBottom = new AtomicInteger(0);
+            this.decidedBelow = new AtomicInteger(0);
+            this.queueToBroadcast = new LinkedBlockingQueue<>();
+            this.outcomes = new LinkedBlockingQueue<>();
+            this.window = new AgreementWindow(now);
+            Metrics.global().gauge("la.window.open", winSize::get);
+            Metrics.global().gauge("la.window.bottom", bottomWindow::get);
+            Metrics.global().gauge("la.window.confirmed", confirmedBottom::get);
+            this.workers = new ConsensusWorker[Integer.max(1, GlobalParams.LA_WORKER_THREADS)];
+            for (int i = 0; i < workers.length; i++) {
+                workers[i] = new ConsensusWorker(myId, nodes, link, this);
+            }
+        }
 
-        public ConsensusStage(ConcurrentSkipListMap<Integer, DecisionStatus> agreements,
-                              AtomicInteger windowSize,
-                              AtomicInteger windowBottom,
-                              ConcurrentLinkedQueue<NetMessage> toBroadcast,
-                              ConcurrentLinkedQueue<NetMessage> toDeliver) {
-            this.allAgreements = agreements;
-            this.winSize = windowSize;
-            this.bottomWindow = windowBottom;
-            this.queueToBroadcast = toBroadcast;
-            this.queueToDeliver = toDeliver;
+        public ConsensusWorker workerFor(int agreementId) {
+            return workers[Math.floorMod(agreementId, workers.length)];
         }
 
-        public ConcurrentSkipListMap<Integer, DecisionStatus> getAgreements() {
-            return allAgreements;
+        public ConsensusWorker[] getWorkers() {
+            return workers;
+        }
+
+        // Counts the agreement into the window the first time anyone opens it
+        public void openAgreement(int agreementId) {
+            if (openAgreements.add(agreementId)) {
+                winSize.incrementAndGet();
+                window.onOpened();
+            }
+        }
+
+        public boolean isOpen(int agreementId) {
+            return openAgreements.contains(agreementId);
+        }
+
+        public void closeAgreement(int agreementId) {
+            openAgreements.remove(agreementId);
         }
 
         public AtomicInteger getWindowSize() {
@@ -157,12 +282,24 @@ public class ConsensusData {
             return bottomWindow;
         }
 
-        public ConcurrentLinkedQueue<NetMessage> getToBroadcast() {
+        public AtomicInteger getConfirmedBottom() {
+            return confirmedBottom;
+        }
+
+        public AtomicInteger getDecidedBelow() {
+            return decidedBelow;
+        }
+
+        public LinkedBlockingQueue<NetMessage> getToBroadcast() {
             return queueToBroadcast;
         }
 
-        public ConcurrentLinkedQueue<NetMessage> getToDeliver() {
-            return queueToDeliver;
+        public LinkedBlockingQueue<AgreementEvent> getOutcomes() {
+            return outcomes;
+        }
+
+        public AgreementWindow getWindow() {
+            return window;
         }
     }
 
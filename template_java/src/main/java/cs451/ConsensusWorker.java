@@ -0,0 +1,303 @@
+package cs451;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One stripe of the lattice agreement logic. Agreements are partitioned by id across workers,
+ * and each worker alone owns the DecisionStatus of its agreements, so no lock is shared between
+ * them. Local decisions are reported to the coordinating stage in LatticeAgreement, which
+ * delivers in order and advances the bottom of the window once every live process decided.
+ * Below it the worker keeps only what it accepted, to answer a process that was suspected while
+ * merely slow, and drops that too once every process confirmed deciding or the agreement falls
+ * LA_RETIRED_SPAN below the bottom, whichever comes first: a crashed process never confirms.
+ */
+public class ConsensusWorker implements Runnable {
+    // wakes the worker when a local proposal was submitted
+    private static final NetMessage WAKEUP = new NetMessage(NetMessage.EchoMarker.ACKSTR, (short) 1, (short) 1, 0, 0,
+            NetMessage.PayLoadKind.ACK, null);
+
+    private static class Submission {
+        private final int agreementId;
+        private final IntSet values;
+
+        private Submission(int agId, IntSet vals) {
+            this.agreementId = agId;
+            this.values = vals;
+        }
+    }
+
+    private final short myself;
+    private final Map<Short, NodeAddress> nodeIndex;
+    private final DeferredSends sends;
+    private final MessageBundler bundler;
+    private final ConsensusData.ConsensusStage stage;
+    private final LinkedBlockingQueue<NetMessage> inbox = new LinkedBlockingQueue<>();
+    private final ConcurrentLinkedQueue<Submission> submitted = new ConcurrentLinkedQueue<>();
+    private final HashMap<Integer, ConsensusData.DecisionStatus> owned = new HashMap<>();
+    // agreements below the window bottom, kept as acceptor state until the confirmed bottom passes
+    // them or they fall LA_RETIRED_SPAN below the window bottom
+    private final HashMap<Integer, ConsensusData.DecisionStatus> retired = new HashMap<>();
+    // the window and confirmed bottoms owned and retired were last purged at
+    private int purgedBelow = 0;
+    private int forgottenBelow = 0;
+    private final Metrics.Histogram rounds = Metrics.global().histogram("la.rounds_per_agreement");
+
+    public ConsensusWorker(short id, Map<Short, NodeAddress> map, SharedInterfaces.MsgTransport link,
+                           ConsensusData.ConsensusStage cStage) {
+        this.myself = id;
+        this.nodeIndex = map;
+        this.sends = new DeferredSends(link, cStage.getDecidedBelow()::get);
+        this.bundler = new MessageBundler(id, map, sends);
+        this.stage = cStage;
+    }
+
+    public void deliver(NetMessage m) {
+        inbox.add(m);
+    }
+
+    public void submit(int agreementId, IntSet values) {
+        submitted.add(new Submission(agreementId, values));
+        inbox.add(WAKEUP);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                NetMessage m = sends.isEmpty() ? inbox.take()
+                        : inbox.poll(GlobalParams.LA_DEFERRED_RETRY, TimeUnit.MILLISECONDS);
+                handle(m);
+            }
+        } catch (InterruptedException e) {
+            System.err.println("ConsensusWorker interrupted");
+        }
+    }
+
+    // Does whatever is queued without blocking, for a caller driving the worker on its own thread;
+    // false if there was nothing to do
+    boolean runPending() {
+        return handle(inbox.poll());
+    }
+
+    private boolean handle(NetMessage m) {
+        sends.retry();
+        purgeBelowBottom();
+        boolean worked = false;
+        Submission s;
+        while ((s = submitted.poll()) != null) {
+            startProposal(s.agreementId, s.values);
+            worked = true;
+        }
+        // replies to everything already queued share bundles
+        int drained = 0;
+        while (m != null) {
+            if (m != WAKEUP) {
+                process(m);
+                worked = true;
+            }
+            m = ++drained < GlobalParams.LA_BUNDLE_DRAIN ? inbox.poll() : null;
+        }
+        bundler.flush();
+        return worked;
+    }
+
+    // Every live process decided the agreements below the bottom: only a late one may still ask
+    // about them, until every process confirmed deciding them too or they are too far behind
+    private void purgeBelowBottom() {
+        int bottom = stage.getWindowBottom().get();
+        if (bottom != purgedBelow) {
+            Iterator<Map.Entry<Integer, ConsensusData.DecisionStatus>> it = owned.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Integer, ConsensusData.DecisionStatus> e = it.next();
+                if (e.getKey() < bottom) {
+                    it.remove();
+                    e.getValue().retire();
+                    retired.put(e.getKey(), e.getValue());
+                    stage.closeAgreement(e.getKey());
+                }
+            }
+            purgedBelow = bottom;
+        }
+        int forget = Integer.max(stage.getConfirmedBottom().get(), bottom - GlobalParams.LA_RETIRED_SPAN);
+        if (forget > forgottenBelow) {
+            Iterator<Integer> it = retired.keySet().iterator();
+            while (it.hasNext()) {
+                if (it.next() < forget) {
+                    it.remove();
+                }
+            }
+            forgottenBelow = forget;
+        }
+    }
+
+    private ConsensusData.DecisionStatus ownOrCreate(int agId, int proposalNum) {
+        ConsensusData.DecisionStatus ds = owned.get(agId);
+        if (ds == null) {
+            ds = new ConsensusData.DecisionStatus(proposalNum, IntSet.EMPTY, nodeIndex.size());
+            owned.put(agId, ds);
+            stage.openAgreement(agId);
+        }
+        return ds;
+    }
+
+    private void startProposal(int agId, IntSet values) {
+        ConsensusData.DecisionStatus ds = ownOrCreate(agId, 0);
+        ds.redefineProposals(values);
+        ds.bumpProposalNumber();
+        ds.startRounds();
+        ds.recordBroadcast(values);
+        stage.getToBroadcast().add(new NetMessage(NetMessage.EchoMarker.ECHOSTR, myself, myself, agId,
+                ds.currentProposalNumber(), NetMessage.PayLoadKind.PROPOSAL, values));
+    }
+
+    private void process(NetMessage delivered) {
+        int agId = delivered.getAgreementId();
+        ConsensusData.DecisionStatus ds;
+        if (stage.getWindowBottom().get() > agId) {
+            // we decided it long ago, but a proposer that fell behind still needs our answer
+            ds = retired.get(agId);
+            if (ds == null) {
+                ds = owned.get(agId); // the bottom moved since the last purge
+            }
+            if (ds != null && isProposal(delivered)) {
+                answerProposal(agId, ds, delivered);
+            }
+            return;
+        }
+        ds = owned.get(agId);
+        if (delivered.getPayloadType() == NetMessage.PayLoadKind.ACK) {
+            if (ds == null) {
+                System.err.println("Received ACK for unknown agreement: " + agId);
+                return;
+            }
+            if (ds.currentProposalNumber() == delivered.getActivePropNumber()) {
+                ds.incAcks();
+                ds.markResponded(delivered.getSenderId());
+            }
+        } else if (delivered.getPayloadType() == NetMessage.PayLoadKind.NACK) {
+            if (ds == null) {
+                System.err.println("NACK for unknown agreement: " + agId);
+                return;
+            }
+            if (ds.currentProposalNumber() == delivered.getActivePropNumber()) {
+                ds.expandProposed(delivered.getVals());
+                ds.incNacks();
+                // nothing we lacked: the acceptor could not read our delta and needs the full set
+                if (!ds.lastBroadcast().containsAll(delivered.getVals())) {
+                    ds.markResponded(delivered.getSenderId());
+                }
+            }
+        } else if (isProposal(delivered)) {
+            ds = ownOrCreate(agId, delivered.getActivePropNumber());
+            if (!answerProposal(agId, ds, delivered)) {
+                return;
+            }
+        } else {
+            throw new IllegalStateException("Unknown payload");
+        }
+
+        if (ds.isActive()) {
+            if (ds.readNacks() > 0 && ds.readAcks() + ds.readNacks() > nodeIndex.size() / 2) {
+                ds.bumpProposalNumber();
+                ds.clearAcks();
+                ds.clearNacks();
+                repropose(agId, ds);
+            }
+            if (ds.readAcks() > nodeIndex.size() / 2) {
+                ds.deactivate();
+                rounds.record(ds.roundsProposed());
+                stage.getWindowSize().decrementAndGet();
+                stage.getOutcomes().add(ConsensusData.AgreementEvent.decided(agId, ds.viewProposed()));
+            }
+        }
+    }
+
+    private static boolean isProposal(NetMessage m) {
+        return m.getPayloadType() == NetMessage.PayLoadKind.PROPOSAL
+                || m.getPayloadType() == NetMessage.PayLoadKind.PROPOSAL_DELTA;
+    }
+
+    // Acceptor: ACKs a proposal covering everything accepted so far, NACKs it with the rest
+    // otherwise; false if it was stale
+    private boolean answerProposal(int agId, ConsensusData.DecisionStatus ds, NetMessage delivered) {
+        IntSet proposal = fullProposal(ds, delivered);
+        if (proposal == null) {
+            // links deliver out of order: a delta overtaken by the next round is stale, not lost
+            if (ds.supersededProposal(delivered.getSourceId(), delivered.getActivePropNumber())) {
+                return false;
+            }
+            // its base is gone (retired) or never came: everything accepted, so the proposer
+            // learns it and sends the full set next round
+            bundler.add(new NetMessage(NetMessage.EchoMarker.ECHOSTR, myself, myself, agId,
+                    delivered.getActivePropNumber(), NetMessage.PayLoadKind.NACK, ds.viewAccepted()),
+                    delivered.getSourceId());
+            return true;
+        }
+        if (ds.acceptedSubsetOf(proposal)) {
+            ds.redefineAccepted(proposal);
+            bundler.add(new NetMessage(NetMessage.EchoMarker.ECHOSTR, myself, myself, agId,
+                    delivered.getActivePropNumber(), NetMessage.PayLoadKind.ACK, null), delivered.getSourceId());
+        } else {
+            ds.expandAccepted(proposal);
+            // the proposer already has everything it proposed, only the rest is news to it
+            IntSet reply = GlobalParams.LA_DELTA_ENCODING ? ds.viewAccepted().minus(proposal) : ds.viewAccepted();
+            bundler.add(new NetMessage(NetMessage.EchoMarker.ECHOSTR, myself, myself, agId,
+                    delivered.getActivePropNumber(), NetMessage.PayLoadKind.NACK, reply),
+                    delivered.getSourceId());
+        }
+        return true;
+    }
+
+    // Rebuilds the full proposal a PROPOSAL_DELTA stands for, null if its base never arrived
+    private IntSet fullProposal(ConsensusData.DecisionStatus ds, NetMessage m) {
+        IntSet vals = m.getVals();
+        if (!GlobalParams.LA_DELTA_ENCODING) {
+            return vals;
+        }
+        if (m.getPayloadType() == NetMessage.PayLoadKind.PROPOSAL_DELTA) {
+            IntSet base = ds.proposalBase(m.getSourceId(), m.getActivePropNumber() - 1);
+            if (base == null) {
+                return null;
+            }
+            vals = base.union(vals);
+        }
+        ds.rememberProposal(m.getSourceId(), m.getActivePropNumber(), vals);
+        return vals;
+    }
+
+    // Acceptors that answered the previous round already hold it, so they only get what is new;
+    // the full set is encoded once for all the others
+    private void repropose(int agId, ConsensusData.DecisionStatus ds) {
+        ds.countRound();
+        IntSet full = ds.viewProposed();
+        NetMessage fullMsg = new NetMessage(NetMessage.EchoMarker.ECHOSTR, myself, myself, agId,
+                ds.currentProposalNumber(), NetMessage.PayLoadKind.PROPOSAL, full);
+        if (!GlobalParams.LA_DELTA_ENCODING) {
+            stage.getToBroadcast().add(fullMsg);
+            return;
+        }
+        NetMessage deltaMsg = new NetMessage(NetMessage.EchoMarker.ECHOSTR, myself, myself, agId,
+                ds.currentProposalNumber(), NetMessage.PayLoadKind.PROPOSAL_DELTA, full.minus(ds.lastBroadcast()));
+        BitSet needFull = new BitSet();
+        for (short d : nodeIndex.keySet()) {
+            if (ds.hasResponded(d)) {
+                bundler.add(deltaMsg, d);
+            } else {
+                needFull.set(d);
+            }
+        }
+        bundler.broadcast(fullMsg, needFull);
+        ds.recordBroadcast(full);
+    }
+
+    @Override
+    public String toString() {
+        return "ConsensusWorker [owned=" + owned.size() + ", retired=" + retired.size() + ", queued=" + inbox.size() + "]";
+    }
+}
@@ -0,0 +1,127 @@
+package cs451;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Accumulates serialized messages bound for a single destination into one datagram,
+ * using the [count][watermark][length][message]... framing read back by PerfectLinks.
+ * An empty batch can still be sealed and sent, as a heartbeat carrying only the watermark.
+ */
+public class DatagramBatch {
+    private short destId;
+    private final int mtu;
+    private final ByteBuffer buffer;
+    private int count;
+    private long openedAt;
+    private boolean sealed;
+
+    // mtu bounds batches of several messages, capacity bounds a single oversized message
+    public DatagramBatch(int mtu, int capacity) {
+        if (mtu <= NetMessage.BATCH_HEADER_SIZE + NetMessage.FRAME_HEADER_SIZE || capacity < mtu) {
+            throw new IllegalArgumentException("Batch capacity too small");
+        }
+        this.mtu = mtu;
+        this.buffer = ByteBuffer.allocateDirect(capacity);
+        reset();
+    }
+
+    // Batches are recycled: clears the buffer and binds it to a (possibly new) destination
+    public void reuseFor(short dest) {
+        this.destId = dest;
+        reset();
+    }
+
+    public static int framedSize(int length) {
+        return NetMessage.FRAME_HEADER_SIZE + length;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    public boolean isFull() {
+        return buffer.position() >= mtu;
+    }
+
+    public boolean fits(int length) {
+        if (sealed) {
+            return false;
+        }
+        int limit = count == 0 ? buffer.capacity() : mtu;
+        return buffer.position() + framedSize(length) <= limit;
+    }
+
+    public void append(byte[] msg, long now) {
+        append(msg, 0, msg.length, now);
+    }
+
+    public void append(byte[] src, int offset, int length, long now) {
+        startFrame(length, now);
+        buffer.put(src, offset, length);
+    }
+
+    // Copies the carrier's frame straight from its message's shared encoding
+    public void append(NetMessage.NetCarrier carrier, long now) {
+        startFrame(carrier.frameLength(), now);
+        carrier.writeFrame(buffer);
+    }
+
+    private void startFrame(int length, long now) {
+        if (!fits(length)) {
+            throw new IllegalStateException("Message does not fit in batch");
+        }
+        if (count == 0) {
+            openedAt = now;
+        }
+        buffer.putShort((short) length);
+        count++;
+    }
+
+    public boolean expired(long now, long maxDelay) {
+        return count > 0 && (now - openedAt) >= maxDelay;
+    }
+
+    // Header of a received datagram: its message count, and the sender's watermark
+    public static int countOf(ByteBuffer datagram) {
+        return datagram.getShort(0) & 0xFFFF;
+    }
+
+    public static int watermarkOf(ByteBuffer datagram) {
+        return datagram.getInt(NetMessage.WATERMARK_OFFSET);
+    }
+
+    public short getDest() {
+        return destId;
+    }
+
+    public long getOpenedAt() {
+        return openedAt;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    // Writes the header and returns the datagram ready to send; idempotent until reuseFor
+    public ByteBuffer seal(int watermark) {
+        if (!sealed) {
+            buffer.putShort(0, (short) count);
+            buffer.putInt(NetMessage.WATERMARK_OFFSET, watermark);
+            buffer.flip();
+            sealed = true;
+        }
+        return buffer;
+    }
+
+    private void reset() {
+        buffer.clear();
+        buffer.position(NetMessage.BATCH_HEADER_SIZE);
+        count = 0;
+        sealed = false;
+    }
+
+    @Override
+    public String toString() {
+        return "DatagramBatch [dest=" + destId + ", count=" + count + ", sealed=" + sealed + "]";
+    }
+}
@@ -0,0 +1,35 @@
+package cs451;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Where PerfectLinks sends and receives its datagrams: a UDP socket (UdpPort) in production,
+ * an in-memory network (SimNetwork) in the cluster simulator.
+ */
+public interface DatagramPort extends AutoCloseable {
+    // false if the datagram could not be written now; retried once the port is writable
+    boolean send(ByteBuffer datagram, short dest) throws IOException;
+
+    // Reads the next waiting datagram into buff and returns its sender's id: 0 for an address
+    // that is no known host, -1 if nothing is waiting
+    short receive(ByteBuffer buff) throws IOException;
+
+    // Blocks until the port is readable (wantRead), writable (wantWrite), woken up or the
+    // deadline passes; Long.MAX_VALUE means no deadline, one at or before now only polls
+    void await(boolean wantRead, boolean wantWrite, long deadline, long now) throws IOException;
+
+    // makes a pending await() return
+    void wakeup();
+
+    // Further receive-only ports the same traffic is spread over, each to be drained by its own
+    // thread; closed along with this port. None unless the port was opened for fan-out
+    default List<DatagramPort> receiveShards() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,97 @@
+package cs451;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.function.IntSupplier;
+
+/**
+ * Sends refused by a full peer queue, retried later without holding up the other peers.
+ * A refused broadcast is kept once, with the peers still missing it. Proposals for agreements
+ * decided here meanwhile are shed instead of retried: a crashed peer refuses everything, and only
+ * those would pile up for it without bound. Replies are always kept, as only the proposals a peer
+ * sent can be answered, and a peer that was merely slow may still be waiting for them.
+ * Not thread-safe: each sending thread keeps its own.
+ */
+public class DeferredSends {
+    private static final class PendingBroadcast {
+        private final NetMessage message;
+        private final BitSet missing;
+
+        private PendingBroadcast(NetMessage m, BitSet dests) {
+            this.message = m;
+            this.missing = dests;
+        }
+    }
+
+    private final SharedInterfaces.MsgTransport channel;
+    // every agreement below it is decided here
+    private final IntSupplier decidedBelow;
+    private final ArrayDeque<NetMessage.NetCarrier> deferred = new ArrayDeque<>();
+    private final ArrayDeque<PendingBroadcast> deferredBroadcasts = new ArrayDeque<>();
+    private final Metrics.Counter shed = Metrics.global().counter("la.deferred.shed");
+
+    public DeferredSends(SharedInterfaces.MsgTransport link, IntSupplier decided) {
+        this.channel = link;
+        this.decidedBelow = decided;
+    }
+
+    public void sendOrDefer(NetMessage m, short dest) {
+        if (!channel.scheduleToSend(m, dest)) {
+            deferred.add(m.toSend(dest, false));
+        }
+    }
+
+    // dests is taken over: the peers that could not take m yet stay set in it
+    public void broadcastOrDefer(NetMessage m, BitSet dests) {
+        if (!channel.broadcast(m, dests)) {
+            deferredBroadcasts.add(new PendingBroadcast(m, dests));
+        }
+    }
+
+    public void retry() {
+        int decided = decidedBelow.getAsInt();
+        for (int i = deferred.size(); i > 0; i--) {
+            NetMessage.NetCarrier c = deferred.poll();
+            if (outdated(c.getMessage(), decided)) {
+                shed.inc();
+            } else {
+                sendOrDefer(c.getMessage(), c.getDest());
+            }
+        }
+        for (int i = deferredBroadcasts.size(); i > 0; i--) {
+            PendingBroadcast b = deferredBroadcasts.poll();
+            if (outdated(b.message, decided)) {
+                shed.add(b.missing.cardinality());
+            } else {
+                broadcastOrDefer(b.message, b.missing);
+            }
+        }
+    }
+
+    // A proposal, or a bundle of nothing else, for agreements all decided here: its answers no longer count
+    private static boolean outdated(NetMessage m, int decided) {
+        if (m.getBundled() == null) {
+            return (m.getPayloadType() == NetMessage.PayLoadKind.PROPOSAL
+                    || m.getPayloadType() == NetMessage.PayLoadKind.PROPOSAL_DELTA) && m.getAgreementId() < decided;
+        }
+        for (NetMessage part : m.getBundled()) {
+            if (!outdated(part, decided)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean isEmpty() {
+        return deferred.isEmpty() && deferredBroadcasts.isEmpty();
+    }
+
+    // Deferred sends, one per destination still missing a message
+    int backlog() {
+        int pending = deferred.size();
+        for (PendingBroadcast b : deferredBroadcasts) {
+            pending += b.missing.cardinality();
+        }
+        return pending;
+    }
+}
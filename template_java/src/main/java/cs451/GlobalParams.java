@@ -16,15 +16,146 @@ public class GlobalParams {
 
     public static final int MSG_SIZE_NO_VALUES = 14;
 
+    // Initial per-peer retransmission timeout before any RTT sample, and its bounds (ms)
     public static final int PL_TIMEOUT_BEFORE_RESEND = 8;
 
-    public static final int SLEEP_BEFORE_NEXT_POLL = 40;
+    public static final long PL_MIN_RTO = 2L;
 
-    public static final int SOCKET_TIMEOUT = 1;
+    public static final long PL_MAX_RTO = 1000L;
 
+    // The output writer commits whatever is buffered at least this often (ms), or once
+    // REC_COMMIT_BYTES are buffered; writers block when both REC_BUFFER_BYTES buffers are busy
     public static final long TIME_BEFORE_FLUSH = 2000L;
 
+    public static final int REC_COMMIT_BYTES = 256 * 1024;
+
+    public static final int REC_BUFFER_BYTES = 1024 * 1024;
+
+    // Metrics are always recorded but only exported on request (-Dcs451.metrics=true): then they are
+    // the cs451:type=Metrics MBean and are appended as JSON lines to the output path plus this
+    // suffix, every METRICS_DUMP_INTERVAL ms (0 dumps only at shutdown)
+    public static final boolean METRICS_EXPORT = Boolean.getBoolean("cs451.metrics");
+
+    public static final String METRICS_FILE_SUFFIX = ".metrics";
+
+    public static final long METRICS_DUMP_INTERVAL = 1000L;
+
+    // Initial number of concurrently open agreements; AgreementWindow adapts it from there
     public static final int MAX_OUT_OF_ORDER_DELIVERY = 8;
 
+    // Bounds of the adaptive agreement window; the upper one is a hard memory cap
+    public static final int LA_MIN_WINDOW = 2;
+
+    public static final int LA_MAX_WINDOW = 256;
+
+    // Agreements below the window bottom whose accepted sets are kept to answer a process that fell
+    // behind, a few seconds of decisions at full speed; older ones are dropped even before every
+    // process confirmed deciding them, which caps that memory when a process crashed
+    public static final int LA_RETIRED_SPAN = 128 * 1024;
+
+    // Length of one window measurement epoch, in ms
+    public static final long LA_WINDOW_EPOCH = 100L;
+
+    // Halve the window when mean decision latency exceeds this multiple of the best seen
+    public static final long LA_WINDOW_LATENCY_FACTOR = 4;
+
+    // Relative throughput gain a growth step must bring, or it is undone
+    public static final double LA_WINDOW_MIN_GAIN = 0.05;
+
+    // Epochs to wait after a backoff before probing upwards again
+    public static final int LA_WINDOW_HOLD_EPOCHS = 10;
+
+    // Agreements are striped by id over this many lattice worker threads
+    public static final int LA_WORKER_THREADS = Integer.max(1, Integer.min(4, Runtime.getRuntime().availableProcessors() / 2));
+
+    // Longest a refused proposer waits before checking the window again, should no decision or newly
+    // opened agreement wake it first (ms)
+    public static final long LA_ROOM_RECHECK = 40L;
+
+    // How often a worker retries sends a full peer queue refused, in ms
+    public static final long LA_DEFERRED_RETRY = 1L;
+
+    // NACKs carry only the values the refused proposal lacks, and re-proposals only what is new
+    // since the previous round to acceptors that answered it (everyone else gets the full set)
+    public static final boolean LA_DELTA_ENCODING = true;
+
+    // Proposals, replies and decisions for several agreements to the same peer travel as one
+    // BUNDLE message, and how many inbound messages a worker handles before flushing its bundles
+    public static final boolean LA_BUNDLING = true;
+
+    public static final int LA_BUNDLE_DRAIN = 256;
+
+    // Messages waiting in one peer's fresh send lanes before scheduleToSend refuses more for it
     public static final int MAX_PL_QUEUE_SIZE = 1024;
+
+    // AIMD congestion window per peer, in unacknowledged messages
+    public static final double PL_INITIAL_CWND = 64;
+
+    public static final double PL_MIN_CWND = 4;
+
+    public static final double PL_MAX_CWND = 1024;
+
+    // Messages per round each send lane may take while the others have work: lattice replies, then
+    // fresh proposals, then retransmissions (link ACKs and SACKs go out ahead of every lane)
+    public static final int PL_LANE_WEIGHT_CONTROL = 8;
+
+    public static final int PL_LANE_WEIGHT_PROPOSAL = 4;
+
+    public static final int PL_LANE_WEIGHT_RETRANSMIT = 2;
+
+    // Token-bucket pacing of everything the link sends, so bursts fit in kernel UDP receive buffers
+    public static final long PL_PACING_BYTES_PER_SEC = 64L * 1024 * 1024;
+
+    public static final long PL_PACING_BURST_BYTES = 64L * 1024;
+
+    // Largest datagram the batching stage builds (Ethernet MTU minus IP/UDP headers)
+    public static final int PL_BATCH_MTU = 1472;
+
+    // Longest a partially filled batch may wait for more messages (ms)
+    public static final long PL_MAX_BATCH_DELAY = 2L;
+
+    public static final int PL_MAX_BATCH_DRAIN = 256;
+
+    // Retransmission timing wheel: slots (power of two) x tick covers one rotation
+    public static final int PL_TIMER_WHEEL_SLOTS = 512;
+
+    public static final long PL_TIMER_TICK_MICROS = 500L;
+
+    // Per-peer sequence numbers with cumulative + selective ACKs instead of one ACK per message;
+    // -Dcs451.sequencedLinks=false switches to the hashed mode, one link ACK per message
+    public static final boolean PL_SEQUENCED_LINKS = Boolean.parseBoolean(
+            System.getProperty("cs451.sequencedLinks", "true"));
+
+    // Sockets in the node's SO_REUSEPORT group (sequenced mode only): the kernel spreads peers over
+    // them and every socket past the first gets its own decoding thread; override with
+    // -Dcs451.receiveShards=...
+    public static final int PL_RECEIVE_SHARDS = Integer.getInteger("cs451.receiveShards", 1);
+
+    // Unacknowledged messages per peer in sequenced mode (multiple of 64)
+    public static final int PL_SEQ_WINDOW = 1024;
+
+    // Longest a receiver holds back its SACK (ms), and the message count that forces one out
+    public static final long PL_DELAYED_ACK = 1L;
+
+    public static final int PL_SACK_EVERY = 32;
+
+    // Hashed mode: link ACKs buffered per peer until the loop stages them into its batch
+    public static final int PL_MAX_OWED_ACKS = 128;
+
+    // A peer that got no datagram from us for this long (ms) gets a heartbeat carrying our watermark
+    public static final long PL_HEARTBEAT_INTERVAL = 50L;
+
+    // A peer not heard from for this long (ms) is taken for crashed: the agreed watermark, and with it
+    // the window, stops waiting for it; it counts again as soon as it is heard from, and what we
+    // accepted below the window is kept to answer it until it confirms deciding
+    public static final long PL_SUSPECT_AFTER = 2000L;
+
+    // How the stages of a process run: "platform" (a thread each), "pool" (EXEC_POOL_THREADS shared
+    // threads, which must cover every stage: the five of the pipeline, the output writer, the metrics
+    // dumps if exported, the lattice workers and every receive shard past the first) or "virtual"
+    // (falls back to platform before JDK 21); override with -Dcs451.executor=...
+    public static final String EXEC_MODE = System.getProperty("cs451.executor", "platform");
+
+    public static final int EXEC_POOL_THREADS = 5 + 1 + (METRICS_EXPORT && METRICS_DUMP_INTERVAL > 0 ? 1 : 0)
+            + LA_WORKER_THREADS + Integer.max(1, PL_RECEIVE_SHARDS) - 1;
 }
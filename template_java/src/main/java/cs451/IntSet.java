@@ -0,0 +1,336 @@
+package cs451;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.function.IntConsumer;
+
+/**
+ * Immutable set of ints for lattice values. Small or sparse sets are a sorted int[] whose joins
+ * and subset checks use galloping merges; once a non-negative set is dense enough that a bitmap
+ * over [0, max] is smaller than the array, it is stored as that bitmap instead.
+ */
+public final class IntSet {
+    public static final IntSet EMPTY = new IntSet(new int[0], 0, null, 0);
+
+    // exactly one of sorted/bits is in use
+    private final int[] sorted;
+    private final int size;
+    private final long[] bits;
+    private final int max;
+
+    private IntSet(int[] sorted, int size, long[] bits, int max) {
+        this.sorted = sorted;
+        this.size = size;
+        this.bits = bits;
+        this.max = max;
+    }
+
+    public static IntSet of(int... vals) {
+        return fromUnsorted(vals.clone(), vals.length);
+    }
+
+    public static IntSet fromCollection(Collection<Integer> vals) {
+        int[] arr = new int[vals.size()];
+        int i = 0;
+        for (int v : vals) {
+            arr[i++] = v;
+        }
+        return fromUnsorted(arr, i);
+    }
+
+    // Takes ownership of arr; sorts and deduplicates its first len entries in place
+    public static IntSet fromUnsorted(int[] arr, int len) {
+        if (isStrictlyIncreasing(arr, len)) {
+            return fromSorted(arr, len); // serialized sets arrive already ordered
+        }
+        Arrays.sort(arr, 0, len);
+        int n = 0;
+        for (int i = 0; i < len; i++) {
+            if (n == 0 || arr[n - 1] != arr[i]) {
+                arr[n++] = arr[i];
+            }
+        }
+        return fromSorted(arr, n);
+    }
+
+    private static boolean isStrictlyIncreasing(int[] arr, int len) {
+        for (int i = 1; i < len; i++) {
+            if (arr[i - 1] >= arr[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static IntSet fromSorted(int[] arr, int n) {
+        if (n == 0) {
+            return EMPTY;
+        }
+        int max = arr[n - 1];
+        if (arr[0] >= 0 && prefersBitmap(n, max)) {
+            long[] bits = new long[(max >>> 6) + 1];
+            for (int i = 0; i < n; i++) {
+                bits[arr[i] >>> 6] |= 1L << arr[i];
+            }
+            return new IntSet(null, n, bits, max);
+        }
+        return new IntSet(arr, n, null, max);
+    }
+
+    // a bitmap over [0, max] costs (max + 1) / 8 bytes against 4 bytes per element
+    private static boolean prefersBitmap(int n, int max) {
+        return ((long) max + 1) < 32L * n;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean isBitmap() {
+        return bits != null;
+    }
+
+    public boolean contains(int v) {
+        if (bits != null) {
+            return v >= 0 && v <= max && (bits[v >>> 6] & (1L << v)) != 0;
+        }
+        return Arrays.binarySearch(sorted, 0, size, v) >= 0;
+    }
+
+    public void forEach(IntConsumer action) {
+        if (bits != null) {
+            for (int w = 0; w < bits.length; w++) {
+                long word = bits[w];
+                while (word != 0) {
+                    action.accept((w << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                action.accept(sorted[i]);
+            }
+        }
+    }
+
+    public int[] toArray() {
+        if (bits == null) {
+            return Arrays.copyOf(sorted, size);
+        }
+        return toSortedArray(bits);
+    }
+
+    // true if every element of other is in this set
+    public boolean containsAll(IntSet other) {
+        if (other.size == 0 || other == this) {
+            return true;
+        }
+        if (other.size > size || other.max > max) {
+            return false;
+        }
+        if (bits != null && other.bits != null) {
+            for (int w = 0; w < other.bits.length; w++) {
+                if ((other.bits[w] & ~bits[w]) != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (bits != null) {
+            for (int i = 0; i < other.size; i++) {
+                if (!contains(other.sorted[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        int[] big = this.sorted;
+        int[] small = other.toArray();
+        int lo = 0;
+        for (int v : small) {
+            lo = gallop(big, lo, size, v);
+            if (lo >= size || big[lo] != v) {
+                return false;
+            }
+            lo++;
+        }
+        return true;
+    }
+
+    // Join of both sets; returns this (or other) unchanged when it already contains the other
+    public IntSet union(IntSet other) {
+        if (containsAll(other)) {
+            return this;
+        }
+        if (other.containsAll(this)) {
+            return other;
+        }
+        if (bits != null || other.bits != null) {
+            int newMax = Integer.max(max, other.max);
+            if (Integer.min(minValue(), other.minValue()) >= 0 && prefersBitmap(size + other.size, newMax)) {
+                long[] merged = new long[(newMax >>> 6) + 1];
+                orInto(merged, this);
+                orInto(merged, other);
+                int n = 0;
+                for (long w : merged) {
+                    n += Long.bitCount(w);
+                }
+                return new IntSet(null, n, merged, newMax);
+            }
+        }
+        int[] a = toArray();
+        int[] b = other.toArray();
+        int[] out = new int[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] == b[j]) {
+                out[n++] = a[i++];
+                j++;
+            } else if (a[i] < b[j]) {
+                // copy the whole run of a below b[j] at once
+                int end = gallop(a, i, a.length, b[j]);
+                System.arraycopy(a, i, out, n, end - i);
+                n += end - i;
+                i = end;
+            } else {
+                int end = gallop(b, j, b.length, a[i]);
+                System.arraycopy(b, j, out, n, end - j);
+                n += end - j;
+                j = end;
+            }
+        }
+        System.arraycopy(a, i, out, n, a.length - i);
+        n += a.length - i;
+        System.arraycopy(b, j, out, n, b.length - j);
+        n += b.length - j;
+        return fromSorted(out, n);
+    }
+
+    // Elements of this set that are not in other
+    public IntSet minus(IntSet other) {
+        if (other.size == 0 || size == 0) {
+            return this;
+        }
+        if (other.containsAll(this)) {
+            return EMPTY;
+        }
+        if (bits != null && other.bits != null) {
+            long[] left = bits.clone();
+            for (int w = 0; w < Integer.min(left.length, other.bits.length); w++) {
+                left[w] &= ~other.bits[w];
+            }
+            int[] arr = toSortedArray(left);
+            return fromSorted(arr, arr.length);
+        }
+        int[] out = new int[size];
+        int[] n = {0};
+        if (other.bits != null) {
+            forEach(v -> {
+                if (!other.contains(v)) {
+                    out[n[0]++] = v;
+                }
+            });
+        } else {
+            int[] lo = {0};
+            forEach(v -> {
+                lo[0] = gallop(other.sorted, lo[0], other.size, v);
+                if (lo[0] >= other.size || other.sorted[lo[0]] != v) {
+                    out[n[0]++] = v;
+                }
+            });
+        }
+        return fromSorted(out, n[0]);
+    }
+
+    private static int[] toSortedArray(long[] words) {
+        int n = 0;
+        for (long w : words) {
+            n += Long.bitCount(w);
+        }
+        int[] out = new int[n];
+        int k = 0;
+        for (int w = 0; w < words.length; w++) {
+            long word = words[w];
+            while (word != 0) {
+                out[k++] = (w << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+            }
+        }
+        return out;
+    }
+
+    private int minValue() {
+        if (size == 0) {
+            return 0;
+        }
+        if (bits == null) {
+            return sorted[0];
+        }
+        for (int w = 0; w < bits.length; w++) {
+            if (bits[w] != 0) {
+                return (w << 6) + Long.numberOfTrailingZeros(bits[w]);
+            }
+        }
+        return 0;
+    }
+
+    private static void orInto(long[] target, IntSet s) {
+        if (s.bits != null) {
+            for (int w = 0; w < s.bits.length; w++) {
+                target[w] |= s.bits[w];
+            }
+        } else {
+            for (int i = 0; i < s.size; i++) {
+                target[s.sorted[i] >>> 6] |= 1L << s.sorted[i];
+            }
+        }
+    }
+
+    // First index in [from, to) whose value is >= key: exponential probe, then binary search
+    private static int gallop(int[] arr, int from, int to, int key) {
+        int step = 1;
+        int lo = from;
+        int hi = from;
+        while (hi < to && arr[hi] < key) {
+            lo = hi + 1;
+            hi = from + step;
+            step <<= 1;
+        }
+        hi = Integer.min(hi, to);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (arr[mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (!(obj instanceof IntSet)) return false;
+        IntSet other = (IntSet) obj;
+        return size == other.size && containsAll(other);
+    }
+
+    @Override
+    public int hashCode() {
+        int[] h = {0};
+        forEach(v -> h[0] += v);
+        return h[0];
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+}
@@ -1,74 +1,87 @@
 package cs451;
 
-import java.net.SocketException;
-import java.net.UnknownHostException;
-import java.util.Collections;
+import java.io.IOException;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class LatticeAgreement implements SharedInterfaces.ChannelSnapshot, SharedInterfaces.ConsensusSnapshot, SharedInterfaces.MsgReception, Runnable {
     private final short myself;
     private final Map<Short, NodeAddress> nodeIndex;
-    private final ConcurrentSkipListMap<Integer, ConsensusData.DecisionStatus> allDecisions;
-    private final ConcurrentLinkedQueue<NetMessage> forBroadcast;
-    private final ConcurrentLinkedQueue<NetMessage> incomingDelivery;
+    private final ConsensusData.ConsensusStage stage;
+    private final LinkedBlockingQueue<NetMessage> forBroadcast;
     private final AtomicInteger sizeWindow;
     private final AtomicInteger bottomWindow;
     private final PerfectLinks channel;
     private final ParticipantRole role;
-    private final ResultsReceiver parentRef;
+    private final SharedInterfaces.DecisionSink parentRef;
+    private final SharedInterfaces.Clock clock;
+    private final DeferredSends deferredSends;
+    private final MessageBundler bundler;
+    // coordinating stage (follower) only: decisions waiting for their turn; every agreement below
+    // nextToDeliver is decided here, which is the watermark the link piggybacks
+    private final HashMap<Integer, IntSet> pendingDecisions = new HashMap<>();
+    private int nextToDeliver = 0;
 
     public LatticeAgreement(short id, Map<Short, NodeAddress> map, ConfigurationFileReader.NestedConfig config)
-            throws SocketException, UnknownHostException {
+            throws IOException {
+        this(id, map, new PerfectLinks(id, map, config));
+    }
+
+    // Initiator over a given link, e.g. one on the simulator's network
+    LatticeAgreement(short id, Map<Short, NodeAddress> map, PerfectLinks link) {
         this.myself = id;
         this.nodeIndex = map;
-        this.allDecisions = new ConcurrentSkipListMap<>();
-        this.sizeWindow = new AtomicInteger(0);
-        this.bottomWindow = new AtomicInteger(0);
-        this.forBroadcast = new ConcurrentLinkedQueue<>();
-        this.channel = new PerfectLinks(myself, nodeIndex, config);
+        this.channel = link;
+        this.clock = link.clock();
+        this.stage = new ConsensusData.ConsensusStage(myself, nodeIndex, channel, clock.nanoTime());
+        this.sizeWindow = stage.getWindowSize();
+        this.bottomWindow = stage.getWindowBottom();
+        this.forBroadcast = stage.getToBroadcast();
+        this.deferredSends = new DeferredSends(channel, stage.getDecidedBelow()::get);
+        this.bundler = new MessageBundler(myself, nodeIndex, deferredSends);
         this.role = ParticipantRole.INITIATOR;
-        this.incomingDelivery = new ConcurrentLinkedQueue<>();
         this.parentRef = null;
     }
 
-    public LatticeAgreement(short id, Map<Short, NodeAddress> map, ResultsReceiver parent,
+    public LatticeAgreement(short id, Map<Short, NodeAddress> map, SharedInterfaces.DecisionSink parent,
                             ConfigurationFileReader.NestedConfig config,
                             ConsensusData.ConsensusStage cStage, ChannelState cSt) {
         this.myself = id;
         this.nodeIndex = map;
-        this.allDecisions = cStage.getAgreements();
+        this.stage = cStage;
         this.sizeWindow = cStage.getWindowSize();
         this.bottomWindow = cStage.getWindowBottom();
         this.forBroadcast = cStage.getToBroadcast();
-        this.incomingDelivery = cStage.getToDeliver();
-        this.channel = new PerfectLinks(myself, nodeIndex, this, config, cSt);
+        this.channel = cSt.getLink();
+        this.clock = channel.clock();
+        this.deferredSends = new DeferredSends(channel, stage.getDecidedBelow()::get);
+        this.bundler = new MessageBundler(myself, nodeIndex, deferredSends);
+        this.channel.attachReceiver(this);
         this.role = ParticipantRole.FOLLOWER;
         this.parentRef = parent;
     }
 
-    public boolean submitProposal(int agreementId, Set<Integer> values) {
+    public boolean submitProposal(int agreementId, IntSet values) {
         if (values == null) {
             throw new IllegalArgumentException("Cannot propose null set");
         }
-        if (!allDecisions.containsKey(agreementId) && sizeWindow.get() > GlobalParams.MAX_OUT_OF_ORDER_DELIVERY) {
+        AgreementWindow window = stage.getWindow();
+        // agreements peers opened count too, but never keep us from those right above our own
+        // decisions: a process that fell behind would wait for room only it can make
+        if (!stage.isOpen(agreementId) && sizeWindow.get() >= window.current()
+                && agreementId - stage.getDecidedBelow().get() >= window.current()) {
             // Too many in-flight
+            window.onRefused();
             return false;
-        } else {
-            if (allDecisions.putIfAbsent(agreementId, new ConsensusData.DecisionStatus(0, Collections.emptySet())) == null) {
-                sizeWindow.incrementAndGet();
-            }
-            synchronized (allDecisions) {
-                ConsensusData.DecisionStatus ds = allDecisions.get(agreementId);
-                ds.redefineProposals(values);
-                ds.bumpProposalNumber();
-                return forBroadcast.add(new NetMessage(NetMessage.EchoMarker.ECHOSTR, myself, myself, agreementId,
-                        ds.currentProposalNumber(), NetMessage.PayLoadKind.PROPOSAL, values));
-            }
         }
+        window.onSubmit(agreementId, clock.nanoTime());
+        stage.openAgreement(agreementId);
+        stage.workerFor(agreementId).submit(agreementId, values);
+        return true;
     }
 
     @Override
@@ -78,18 +91,29 @@ public class LatticeAgreement implements SharedInterfaces.ChannelSnapshot, Share
 
     @Override
     public void receiveDeliveredMessage(NetMessage m) {
-        incomingDelivery.add(m);
+        stage.workerFor(m.getAgreementId()).deliver(m);
     }
 
     @Override
     public ConsensusData.ConsensusStage snapshotConsensus() {
-        return new ConsensusData.ConsensusStage(allDecisions, sizeWindow, bottomWindow, forBroadcast, incomingDelivery);
+        return stage;
     }
 
     @Override
     public void run() {
-        Thread linkThread = new Thread(channel, "Host " + myself + " " + role.name());
-        linkThread.start();
+        // the initiator owns the link's event loop and broadcasts, the follower runs the workers
+        // and coordinates their outcomes
+        StageExecutor executor = StageExecutor.global();
+        Future<?>[] helpers;
+        if (role == ParticipantRole.INITIATOR) {
+            helpers = new Future<?>[] {executor.start("Host " + myself + " Link", channel)};
+        } else {
+            ConsensusWorker[] workers = stage.getWorkers();
+            helpers = new Future<?>[workers.length];
+            for (int i = 0; i < workers.length; i++) {
+                helpers[i] = executor.start("Consensus Worker " + i, workers[i]);
+            }
+        }
         try {
             if (role == ParticipantRole.INITIATOR) {
                 while (!Thread.currentThread().isInterrupted()) {
@@ -97,114 +121,97 @@ public class LatticeAgreement implements SharedInterfaces.ChannelSnapshot, Share
                 }
             } else if (role == ParticipantRole.FOLLOWER) {
                 while (!Thread.currentThread().isInterrupted()) {
-                    handleFollowerLoop();
+                    handleCoordinatorLoop();
                 }
             } else {
                 throw new IllegalStateException("Unknown role");
             }
         } catch (InterruptedException e) {
             System.err.println("Interrupted " + role.name() + " LayeredConsensus");
-            linkThread.interrupt();
+            for (Future<?> h : helpers) {
+                h.cancel(true);
+            }
         }
     }
 
     private void handleInitiatorLoop() throws InterruptedException {
-        NetMessage toSend = forBroadcast.poll();
+        // sleeps until a worker queues a broadcast, waking up early only to retry refused sends
+        NetMessage first = deferredSends.isEmpty() ? forBroadcast.take()
+                : forBroadcast.poll(GlobalParams.LA_DEFERRED_RETRY, TimeUnit.MILLISECONDS);
+        broadcast(first);
+    }
+
+    // Initiator: sends what is queued for broadcast, false if there was nothing
+    boolean pumpBroadcasts() {
+        return broadcast(forBroadcast.poll());
+    }
+
+    private boolean broadcast(NetMessage toSend) {
+        deferredSends.retry();
         if (toSend == null) {
-            Thread.sleep(GlobalParams.SLEEP_BEFORE_NEXT_POLL);
-        } else {
-            for (short d : nodeIndex.keySet()) {
-                while (!channel.scheduleToSend(toSend, d)) {
-                    Thread.sleep(GlobalParams.SLEEP_BEFORE_NEXT_POLL);
-                }
-            }
+            return false;
         }
+        // everything queued right now goes out in as few bundles as fit, each encoded once for all peers
+        int drained = 0;
+        do {
+            bundler.broadcast(toSend);
+        } while (++drained < GlobalParams.LA_BUNDLE_DRAIN && (toSend = forBroadcast.poll()) != null);
+        bundler.flush();
+        return true;
     }
 
-    private void handleFollowerLoop() throws InterruptedException {
-        NetMessage delivered = incomingDelivery.poll();
-        if (delivered == null) {
-            Thread.sleep(GlobalParams.SLEEP_BEFORE_NEXT_POLL);
-        } else {
-            int agId = delivered.getAgreementId();
-            if (bottomWindow.get() > agId) {
-                return; // we moved past this agreement
-            }
-            synchronized (allDecisions) {
-                ConsensusData.DecisionStatus ds = allDecisions.get(agId);
-                if (delivered.getPayloadType() == NetMessage.PayLoadKind.ACK) {
-                    if (!allDecisions.containsKey(agId)) {
-                        System.err.println("Received ACK for unknown agreement: " + agId);
-                        return;
-                    }
-                    if (ds.currentProposalNumber() == delivered.getActivePropNumber()) {
-                        ds.incAcks();
-                    }
-                } else if (delivered.getPayloadType() == NetMessage.PayLoadKind.NACK) {
-                    if (!allDecisions.containsKey(agId)) {
-                        System.err.println("NACK for unknown agreement: " + agId);
-                        return;
-                    }
-                    if (ds.currentProposalNumber() == delivered.getActivePropNumber()) {
-                        ds.expandProposed(delivered.getVals());
-                        ds.incNacks();
-                    }
-                } else if (delivered.getPayloadType() == NetMessage.PayLoadKind.DECIDED) {
-                    if (allDecisions.putIfAbsent(agId, new ConsensusData.DecisionStatus(delivered.getActivePropNumber(), Collections.emptySet())) == null) {
-                        sizeWindow.incrementAndGet();
-                    }
-                    ds = allDecisions.get(agId);
-                    ds.incDecisions();
-                } else if (delivered.getPayloadType() == NetMessage.PayLoadKind.PROPOSAL) {
-                    if (allDecisions.putIfAbsent(agId, new ConsensusData.DecisionStatus(delivered.getActivePropNumber(), Collections.emptySet())) == null) {
-                        sizeWindow.incrementAndGet();
-                    }
-                    ds = allDecisions.get(agId);
-                    if (ds.acceptedSubsetOf(delivered.getVals())) {
-                        ds.redefineAccepted(delivered.getVals());
-                        while (!channel.scheduleToSend(
-                                new NetMessage(NetMessage.EchoMarker.ECHOSTR, myself, myself, agId, delivered.getActivePropNumber(),
-                                        NetMessage.PayLoadKind.ACK, null),
-                                delivered.getSourceId())) {
-                            Thread.sleep(GlobalParams.SLEEP_BEFORE_NEXT_POLL);
-                        }
-                    } else {
-                        ds.expandAccepted(delivered.getVals());
-                        while (!channel.scheduleToSend(
-                                new NetMessage(NetMessage.EchoMarker.ECHOSTR, myself, myself, agId, delivered.getActivePropNumber(),
-                                        NetMessage.PayLoadKind.NACK, ds.viewAccepted()),
-                                delivered.getSourceId())) {
-                            Thread.sleep(GlobalParams.SLEEP_BEFORE_NEXT_POLL);
-                        }
-                    }
-                } else {
-                    throw new IllegalStateException("Unknown payload");
-                }
+    private void handleCoordinatorLoop() throws InterruptedException {
+        // peers' watermarks come in with their traffic, so the bottom is checked without outcomes too
+        ConsensusData.AgreementEvent ev = stage.getOutcomes().poll(GlobalParams.PL_HEARTBEAT_INTERVAL,
+                TimeUnit.MILLISECONDS);
+        if (ev != null) {
+            handleOutcome(ev);
+        }
+        collectGarbage();
+    }
 
-                if (ds.isActive()) {
-                    if (ds.readNacks() > 0 && ds.readAcks() + ds.readNacks() > nodeIndex.size() / 2) {
-                        ds.bumpProposalNumber();
-                        ds.clearAcks();
-                        ds.clearNacks();
-                        forBroadcast.add(new NetMessage(NetMessage.EchoMarker.ECHOSTR, myself, myself, agId, ds.currentProposalNumber(),
-                                NetMessage.PayLoadKind.PROPOSAL, ds.viewProposed()));
-                    }
-                    if (ds.readAcks() > nodeIndex.size() / 2) {
-                        parentRef.deliver(agId, ds.viewProposed());
-                        ds.deactivate();
-                        sizeWindow.decrementAndGet();
-                        forBroadcast.add(new NetMessage(NetMessage.EchoMarker.ECHOSTR, myself, myself, agId,
-                                ds.currentProposalNumber(), NetMessage.PayLoadKind.DECIDED, null));
-                    }
-                }
+    // Follower: handles the outcomes reported so far without blocking, false if there were none
+    boolean pumpOutcomes() {
+        ConsensusData.AgreementEvent ev = stage.getOutcomes().poll();
+        boolean worked = ev != null;
+        while (ev != null) {
+            handleOutcome(ev);
+            ev = stage.getOutcomes().poll();
+        }
+        return collectGarbage() || worked;
+    }
 
-                if (allDecisions.firstKey() == bottomWindow.get()
-                        && allDecisions.firstEntry().getValue().getDecisionsCount() >= nodeIndex.size()) {
-                    bottomWindow.incrementAndGet();
-                    channel.flush(allDecisions.firstKey());
-                    allDecisions.remove(allDecisions.firstKey());
-                }
-            }
+    // Delivers decisions in agreement order and publishes how far they go
+    private void handleOutcome(ConsensusData.AgreementEvent ev) {
+        stage.getWindow().onDecided(ev.getAgreementId(), clock.nanoTime());
+        pendingDecisions.put(ev.getAgreementId(), ev.getDecided());
+        IntSet next;
+        int before = nextToDeliver;
+        while ((next = pendingDecisions.remove(nextToDeliver)) != null) {
+            parentRef.deliver(nextToDeliver, next);
+            nextToDeliver++;
+        }
+        if (nextToDeliver != before) {
+            stage.getDecidedBelow().set(nextToDeliver);
+            channel.publishWatermark(nextToDeliver);
+        }
+    }
+
+    // Moves the bottom of the window up to the agreed watermark, and the confirmed bottom up to
+    // what every process decided; true if either moved
+    private boolean collectGarbage() {
+        boolean moved = false;
+        int agreed = channel.agreedWatermark();
+        if (agreed > bottomWindow.get()) {
+            bottomWindow.set(agreed);
+            channel.flush(agreed);
+            moved = true;
+        }
+        int confirmed = channel.confirmedWatermark();
+        if (confirmed > stage.getConfirmedBottom().get()) {
+            stage.getConfirmedBottom().set(confirmed);
+            moved = true;
         }
+        return moved;
     }
 }
@@ -1,8 +1,11 @@
 package cs451;
 
-import java.net.SocketException;
-import java.net.UnknownHostException;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 public class Main {
 
@@ -36,6 +39,13 @@ public class Main {
 
         System.out.println("Creating log file...");
         final RecordKeeper rec = new RecordKeeper(handler.getOutput());
+        if (GlobalParams.METRICS_EXPORT) {
+            Metrics.global().registerMBean();
+            if (GlobalParams.METRICS_DUMP_INTERVAL > 0) {
+                Metrics.global().startDumps(Paths.get(handler.getOutput() + GlobalParams.METRICS_FILE_SUFFIX),
+                        GlobalParams.METRICS_DUMP_INTERVAL);
+            }
+        }
         final short myId = handler.getMyId();
         final Map<Short, NodeAddress> hm = handler.getHostsMap();
         final ConfigurationFileReader cfgReader = new ConfigurationFileReader();
@@ -45,6 +55,7 @@ public class Main {
         System.out.println("===============");
         System.out.println(cfgReader.obtainNestedConfig());
 
+        Future<?> recvStage = null;
         try {
             RequestsInitiator init = new RequestsInitiator(myId, hm, cfgReader);
             ChannelState chSt = init.snapshotChannel();
@@ -52,34 +63,41 @@ public class Main {
 
             ResultsReceiver recv = new ResultsReceiver(rec, myId, hm, cfgReader, chSt, stage);
 
-            Thread initThread = new Thread(init);
-            Thread recvThread = new Thread(recv);
-            setupSignalHandlers(rec, handler.getOutput(), initThread, recvThread);
-
-            System.out.println("Starting broadcast/delivery");
-            initThread.start();
-            recvThread.start();
-        } catch (UnknownHostException | SocketException e) {
+            StageExecutor executor = StageExecutor.global();
+            System.out.println("Starting broadcast/delivery on " + executor.mode().name().toLowerCase() + " threads");
+            Future<?> initStage = executor.start("Requests Initiator", init);
+            recvStage = executor.start("Results Receiver", recv);
+            setupSignalHandlers(rec, handler.getOutput(), initStage, recvStage);
+        } catch (IOException e) {
             System.err.println("Host configuration error");
             e.printStackTrace();
             System.exit(1);
         }
 
-        // Wait indefinitely
-        while (true) {
-            Thread.sleep(3600_000);
+        // The receiver runs until we are stopped; stage threads are daemons, so wait for it here
+        try {
+            recvStage.get();
+        } catch (CancellationException e) {
+            System.out.println("Delivery stopped");
+        } catch (ExecutionException e) {
+            System.err.println("Delivery failed");
+            e.getCause().printStackTrace();
+            System.exit(1);
         }
     }
 
-    private static void handleStop(RecordKeeper rec, String output, Thread sender, Thread receiver) {
+    private static void handleStop(RecordKeeper rec, String output, Future<?> sender, Future<?> receiver) {
         System.out.println("Stopping network packet handling...");
-        sender.interrupt();
-        receiver.interrupt();
+        sender.cancel(true);
+        receiver.cancel(true);
         System.out.println("Final flush...");
-        rec.attemptFlush(true);
+        rec.flushAndClose();
+        if (GlobalParams.METRICS_EXPORT) {
+            Metrics.global().dump(Paths.get(output + GlobalParams.METRICS_FILE_SUFFIX));
+        }
     }
 
-    private static void setupSignalHandlers(RecordKeeper rec, String output, Thread sender, Thread receiver) {
+    private static void setupSignalHandlers(RecordKeeper rec, String output, Future<?> sender, Future<?> receiver) {
         Runtime.getRuntime().addShutdownHook(new Thread() {
             @Override
             public void run() {
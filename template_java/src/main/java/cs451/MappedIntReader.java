@@ -0,0 +1,105 @@
+package cs451;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads space separated ints line by line from a file mapped in fixed size regions, parsing
+ * digits straight from the mapping. Memory use does not depend on the file size.
+ */
+public class MappedIntReader implements Closeable {
+    private static final long REGION_BYTES = 64L * 1024 * 1024;
+    private static final int EOF = -1;
+
+    private final FileChannel channel;
+    private final long size;
+    private long regionStart;
+    private MappedByteBuffer region;
+
+    public MappedIntReader(Path path, long offset) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.size = channel.size();
+        if (offset < 0 || offset > size) {
+            channel.close();
+            throw new IllegalArgumentException("Offset outside of " + path);
+        }
+        map(offset);
+    }
+
+    // Offset of the next unread byte
+    public long position() {
+        return regionStart + region.position();
+    }
+
+    public boolean atEnd() {
+        return position() >= size;
+    }
+
+    /**
+     * Parses the ints of the next line into out and consumes the line break.
+     * Returns how many were read, or -1 at the end of the file.
+     * Throws IllegalArgumentException on anything but digits, signs and blanks, or more than out.length ints.
+     */
+    public int readLine(int[] out) throws IOException {
+        int b = next();
+        if (b == EOF) {
+            return -1;
+        }
+        int count = 0;
+        while (b != EOF && b != '\n') {
+            if (b == ' ' || b == '\t' || b == '\r') {
+                b = next();
+                continue;
+            }
+            boolean negative = b == '-';
+            if (negative) {
+                b = next();
+            }
+            if (b < '0' || b > '9') {
+                throw new IllegalArgumentException("Not a number at byte " + (position() - 1));
+            }
+            long v = 0;
+            while (b >= '0' && b <= '9') {
+                v = v * 10 + (b - '0');
+                if (v > Integer.MAX_VALUE + 1L) {
+                    throw new IllegalArgumentException("Number too large at byte " + (position() - 1));
+                }
+                b = next();
+            }
+            v = negative ? -v : v;
+            if (v > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Number too large at byte " + (position() - 1));
+            }
+            if (count == out.length) {
+                throw new IllegalArgumentException("More than " + out.length + " values on a line");
+            }
+            out[count++] = (int) v;
+        }
+        return count;
+    }
+
+    private int next() throws IOException {
+        if (!region.hasRemaining()) {
+            long at = position();
+            if (at >= size) {
+                return EOF;
+            }
+            map(at);
+        }
+        return region.get() & 0xFF;
+    }
+
+    private void map(long offset) throws IOException {
+        regionStart = offset;
+        region = channel.map(FileChannel.MapMode.READ_ONLY, offset, Long.min(REGION_BYTES, size - offset));
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,135 @@
+package cs451;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects the messages a thread produces for each peer and sends them as BUNDLE messages, so
+ * one link message (one retransmission timer, one ACK) covers many agreements. A bundle is cut
+ * when the next part would not fit in one datagram; a lone message goes out as itself.
+ * Messages for the same set of nodes share one bundle, broadcast by the link from a single
+ * encoding.
+ * Not thread-safe: each sending thread keeps its own.
+ */
+public class MessageBundler {
+    // bundles from one source must never share an identity, whichever thread built them
+    private static final AtomicInteger serials = new AtomicInteger();
+
+    // what is left of one datagram for the bundle's entries
+    private static final int BUDGET = GlobalParams.PL_BATCH_MTU - NetMessage.BATCH_HEADER_SIZE
+            - NetMessage.FRAME_HEADER_SIZE - SequenceWindows.SEQ_HEADER_SIZE - NetMessage.BUNDLE_HEADER_SIZE;
+
+    private final short myself;
+    private final DeferredSends sends;
+    private final List<NetMessage>[] pending;
+    private final int[] pendingBytes;
+    private final BitSet everyone = new BitSet();
+    // broadcasts waiting for a flush, by destination set
+    private final Map<BitSet, Group> pendingBroadcasts = new HashMap<>();
+
+    private static class Group {
+        private final List<NetMessage> parts = new ArrayList<>();
+        private int bytes = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public MessageBundler(short id, Map<Short, NodeAddress> map, DeferredSends deferred) {
+        this.myself = id;
+        this.sends = deferred;
+        int maxId = 0;
+        for (short d : map.keySet()) {
+            maxId = Integer.max(maxId, d);
+        }
+        this.pending = (List<NetMessage>[]) new List<?>[maxId + 1];
+        this.pendingBytes = new int[maxId + 1];
+        for (short d : map.keySet()) {
+            pending[d] = new ArrayList<>();
+            everyone.set(d);
+        }
+    }
+
+    public void add(NetMessage m, short dest) {
+        if (!GlobalParams.LA_BUNDLING || dest == myself) {
+            sends.sendOrDefer(m, dest); // loopback costs nothing per message
+            return;
+        }
+        int size = NetMessage.bundledSize(m);
+        if (size > BUDGET) {
+            sends.sendOrDefer(m, dest);
+            return;
+        }
+        if (pendingBytes[dest] + size > BUDGET) {
+            flush(dest);
+        }
+        pending[dest].add(m);
+        pendingBytes[dest] += size;
+    }
+
+    // m goes to every node, ourselves included
+    public void broadcast(NetMessage m) {
+        broadcast(m, everyone);
+    }
+
+    // m goes to the nodes in dests only; the caller must not change dests afterwards
+    public void broadcast(NetMessage m, BitSet dests) {
+        if (dests.isEmpty()) {
+            return;
+        }
+        if (dests.cardinality() == 1) {
+            add(m, (short) dests.nextSetBit(0));
+            return;
+        }
+        int size = NetMessage.bundledSize(m);
+        if (!GlobalParams.LA_BUNDLING || size > BUDGET) {
+            sends.broadcastOrDefer(m, (BitSet) dests.clone());
+            return;
+        }
+        Group g = pendingBroadcasts.computeIfAbsent(dests, k -> new Group());
+        if (g.bytes + size > BUDGET) {
+            flush(dests, g);
+        }
+        g.parts.add(m);
+        g.bytes += size;
+    }
+
+    public void flush() {
+        for (Map.Entry<BitSet, Group> e : pendingBroadcasts.entrySet()) {
+            flush(e.getKey(), e.getValue());
+        }
+        pendingBroadcasts.clear();
+        for (short d = 0; d < pending.length; d++) {
+            if (pending[d] != null) {
+                flush(d);
+            }
+        }
+    }
+
+    private void flush(BitSet dests, Group g) {
+        if (g.parts.isEmpty()) {
+            return;
+        }
+        NetMessage m = g.parts.size() == 1 ? g.parts.get(0)
+                : NetMessage.bundle(myself, serials.incrementAndGet(), new ArrayList<>(g.parts));
+        sends.broadcastOrDefer(m, (BitSet) dests.clone());
+        g.parts.clear();
+        g.bytes = 0;
+    }
+
+    private void flush(short dest) {
+        List<NetMessage> parts = pending[dest];
+        if (parts.isEmpty()) {
+            return;
+        }
+        if (parts.size() == 1) {
+            sends.sendOrDefer(parts.get(0), dest);
+        } else {
+            sends.sendOrDefer(NetMessage.bundle(myself, serials.incrementAndGet(), new ArrayList<>(parts)), dest);
+        }
+        parts.clear();
+        pendingBytes[dest] = 0;
+    }
+}
@@ -0,0 +1,133 @@
+package cs451;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reusable flyweight over one serialized NetMessage inside a receive buffer. Header fields are
+ * read in place with absolute gets; only materialize() allocates, and it copies the raw values
+ * without building the set, so duplicates and link ACKs are handled without any allocation.
+ * A view is only valid until its buffer is reused for the next datagram.
+ */
+public final class MessageView {
+    private static final int ECHO_OFFSET = 0;
+    private static final int SENDER_OFFSET = 1;
+    private static final int SOURCE_OFFSET = 3;
+    private static final int AGREEMENT_OFFSET = 5;
+    private static final int PROP_NUM_OFFSET = 9;
+    private static final int KIND_OFFSET = 13;
+    private static final int VALUES_OFFSET = GlobalParams.MSG_SIZE_NO_VALUES;
+
+    private ByteBuffer buff;
+    private int base;
+    private int length;
+
+    public MessageView wrap(ByteBuffer buffer, int offset, int len) {
+        if (len < GlobalParams.MSG_SIZE_NO_VALUES) {
+            throw new IllegalStateException("Deserialization error: message too short");
+        }
+        this.buff = buffer;
+        this.base = offset;
+        this.length = len;
+        return this;
+    }
+
+    public NetMessage.EchoMarker getEchoMarker() {
+        return NetMessage.EchoMarker.decode(buff.get(base + ECHO_OFFSET));
+    }
+
+    public short getSenderId() {
+        return buff.getShort(base + SENDER_OFFSET);
+    }
+
+    public short getSourceId() {
+        return buff.getShort(base + SOURCE_OFFSET);
+    }
+
+    public int getAgreementId() {
+        return buff.getInt(base + AGREEMENT_OFFSET);
+    }
+
+    public int getActivePropNumber() {
+        return buff.getInt(base + PROP_NUM_OFFSET);
+    }
+
+    public NetMessage.PayLoadKind getPayloadType() {
+        return NetMessage.PayLoadKind.decode(buff.get(base + KIND_OFFSET));
+    }
+
+    public boolean isPureAck() {
+        return getEchoMarker() == NetMessage.EchoMarker.ACKSTR;
+    }
+
+    public boolean hasValues() {
+        return NetMessage.carriesValues(getEchoMarker(), getPayloadType());
+    }
+
+    // Writes our link-level ACK for this message at out's position, GlobalParams.MSG_SIZE_NO_VALUES bytes
+    public void writeAckReply(ByteBuffer out, short ackSender) {
+        out.put(NetMessage.EchoMarker.ACKSTR.encode()).putShort(ackSender).putShort(getSourceId())
+                .putInt(getAgreementId()).putInt(getActivePropNumber()).put(buff.get(base + KIND_OFFSET));
+    }
+
+    public boolean isBundle() {
+        return !isPureAck() && getPayloadType() == NetMessage.PayLoadKind.BUNDLE;
+    }
+
+    // Copies the message out of the buffer; the value set itself is decoded on first getVals()
+    public NetMessage materialize() {
+        if (isBundle()) {
+            return materializeBundle();
+        }
+        int[] raw = hasValues() ? readValues(base + VALUES_OFFSET) : null;
+        return NetMessage.fromRaw(getEchoMarker(), getSenderId(), getSourceId(), getAgreementId(),
+                getActivePropNumber(), getPayloadType(), raw);
+    }
+
+    private NetMessage materializeBundle() {
+        short sender = getSenderId();
+        short source = getSourceId();
+        int count = buff.getShort(base + VALUES_OFFSET) & 0xFFFF;
+        List<NetMessage> parts = new ArrayList<>(count);
+        int at = base + VALUES_OFFSET + Short.BYTES;
+        for (int i = 0; i < count; i++) {
+            if (at + Integer.BYTES * 2 + Byte.BYTES > base + length) {
+                throw new IllegalStateException("Deserialization error: truncated bundle");
+            }
+            int agId = buff.getInt(at);
+            int propNum = buff.getInt(at + Integer.BYTES);
+            NetMessage.PayLoadKind kind = NetMessage.PayLoadKind.decode(buff.get(at + Integer.BYTES * 2));
+            if (kind == NetMessage.PayLoadKind.BUNDLE) {
+                throw new IllegalStateException("Deserialization error: nested bundle");
+            }
+            at += Integer.BYTES * 2 + Byte.BYTES;
+            int[] raw = null;
+            if (NetMessage.carriesValues(NetMessage.EchoMarker.ECHOSTR, kind)) {
+                raw = readValues(at);
+                at += Integer.BYTES * (raw.length + 1);
+            }
+            parts.add(NetMessage.fromRaw(NetMessage.EchoMarker.ECHOSTR, sender, source, agId, propNum, kind, raw));
+        }
+        return NetMessage.fromBundle(sender, source, getAgreementId(), getActivePropNumber(), parts);
+    }
+
+    // [count: int][count x int] at the absolute position at
+    private int[] readValues(int at) {
+        int size = buff.getInt(at);
+        if (size < 0 || (at - base) + Integer.BYTES * (1L + size) > length) {
+            throw new IllegalStateException("Deserialization error: value count");
+        }
+        int[] raw = new int[size];
+        at += Integer.BYTES;
+        for (int i = 0; i < size; i++, at += Integer.BYTES) {
+            raw[i] = buff.getInt(at);
+        }
+        return raw;
+    }
+
+    @Override
+    public String toString() {
+        return "MessageView [offset=" + base + ", length=" + length + "]";
+    }
+}
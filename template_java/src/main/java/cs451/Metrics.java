@@ -0,0 +1,276 @@
+package cs451;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Process-wide registry of named counters, histograms and gauges. Counters are striped
+ * (LongAdder) and histograms are log-linear buckets of atomic longs, so recording never takes
+ * a lock; gauges are read only when a snapshot is taken. Every series is an attribute of the
+ * cs451:type=Metrics MBean, and dump() appends the snapshot to a file as one JSON object per line.
+ */
+public final class Metrics {
+    private static final Metrics GLOBAL = new Metrics();
+
+    private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private boolean registered = false;
+
+    public static Metrics global() {
+        return GLOBAL;
+    }
+
+    public Counter counter(String name) {
+        return counters.computeIfAbsent(name, k -> new Counter());
+    }
+
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, k -> new Histogram());
+    }
+
+    // Replaces any gauge registered under the same name
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * A counter striped across threads; cheap to bump from any number of them.
+     */
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long n) {
+            value.add(n);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    /**
+     * Non-negative values in log-linear buckets: SUB_BUCKETS per power of two, so any percentile
+     * is off by at most 1/SUB_BUCKETS of its value.
+     */
+    public static final class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray((Long.SIZE - SUB_BITS + 1) * SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long v) {
+            if (v < 0) {
+                v = 0;
+            }
+            buckets.incrementAndGet(bucket(v));
+            count.increment();
+            sum.add(v);
+            long m = max.get();
+            while (v > m && !max.compareAndSet(m, v)) {
+                m = max.get();
+            }
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        public long mean() {
+            long c = count.sum();
+            return c == 0 ? 0 : sum.sum() / c;
+        }
+
+        // Lower bound of the bucket holding the q-quantile, 0 when empty
+        public long percentile(double q) {
+            long total = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                total += buckets.get(i);
+            }
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0) {
+                    return lowerBound(i);
+                }
+            }
+            return 0;
+        }
+
+        private static int bucket(long v) {
+            if (v < SUB_BUCKETS) {
+                return (int) v;
+            }
+            int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) ((v >>> shift) - SUB_BUCKETS);
+        }
+
+        private static long lowerBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = bucket / SUB_BUCKETS - 1;
+            return (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        }
+    }
+
+    // Every series by name; a histogram h shows up as h.count, h.mean, h.p50, h.p90, h.p99 and h.max
+    public SortedMap<String, Long> snapshot() {
+        TreeMap<String, Long> snap = new TreeMap<>();
+        for (Map.Entry<String, Counter> e : counters.entrySet()) {
+            snap.put(e.getKey(), e.getValue().get());
+        }
+        for (Map.Entry<String, LongSupplier> e : gauges.entrySet()) {
+            snap.put(e.getKey(), e.getValue().getAsLong());
+        }
+        for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+            Histogram h = e.getValue();
+            snap.put(e.getKey() + ".count", h.count());
+            snap.put(e.getKey() + ".mean", h.mean());
+            snap.put(e.getKey() + ".p50", h.percentile(0.50));
+            snap.put(e.getKey() + ".p90", h.percentile(0.90));
+            snap.put(e.getKey() + ".p99", h.percentile(0.99));
+            snap.put(e.getKey() + ".max", h.max());
+        }
+        return snap;
+    }
+
+    public String toJson(long timestampMillis) {
+        StringBuilder sb = new StringBuilder("{\"timestamp\":").append(timestampMillis).append(",\"metrics\":{");
+        boolean first = true;
+        for (Map.Entry<String, Long> e : snapshot().entrySet()) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append('"').append(e.getKey()).append("\":").append(e.getValue());
+        }
+        return sb.append("}}\n").toString();
+    }
+
+    public synchronized void dump(Path file) {
+        try {
+            Files.write(file, toJson(System.currentTimeMillis()).getBytes(StandardCharsets.US_ASCII),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.err.println("Metrics dump failed");
+            e.printStackTrace();
+        }
+    }
+
+    // Dumps every intervalMillis from a stage of its own
+    public void startDumps(Path file, long intervalMillis) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("Dump interval must be positive");
+        }
+        StageExecutor.global().start("Metrics Dump", () -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    Thread.sleep(intervalMillis);
+                    dump(file);
+                }
+            } catch (InterruptedException e) {
+                System.err.println("Metrics dumps stopped");
+            }
+        });
+    }
+
+    public synchronized void registerMBean() {
+        if (registered) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(new View(), new ObjectName("cs451:type=Metrics"));
+            registered = true;
+        } catch (JMException e) {
+            System.err.println("Could not register metrics MBean");
+            e.printStackTrace();
+        }
+    }
+
+    // Read-only JMX view; the attribute set follows whatever is registered when it is asked
+    private class View implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Long v = snapshot().get(attribute);
+            if (v == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return v;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            SortedMap<String, Long> snap = snapshot();
+            AttributeList list = new AttributeList();
+            for (String a : attributes) {
+                Long v = snap.get(a);
+                if (v != null) {
+                    list.add(new Attribute(a, v));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException("No operations on metrics");
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            SortedMap<String, Long> snap = snapshot();
+            MBeanAttributeInfo[] attrs = new MBeanAttributeInfo[snap.size()];
+            int i = 0;
+            for (String name : snap.keySet()) {
+                attrs[i++] = new MBeanAttributeInfo(name, "long", name, true, false, false);
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Protocol metrics", attrs, null, null, null);
+        }
+    }
+}
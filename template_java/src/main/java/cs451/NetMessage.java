@@ -1,11 +1,19 @@
 package cs451;
 
 import java.nio.ByteBuffer;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.List;
 
 public class NetMessage {
 
+    // Datagram framing: [count: short][watermark: int] followed by count x ([length: short][message bytes]);
+    // the watermark is the sender's "decided up to", a heartbeat is a datagram with count 0
+    public static final int BATCH_HEADER_SIZE = Short.BYTES + Integer.BYTES;
+    public static final int WATERMARK_OFFSET = Short.BYTES;
+    public static final int FRAME_HEADER_SIZE = Short.BYTES;
+
+    // Bundle payload: [count: short] followed by count x ([agreementId: int][propNum: int][kind: byte][values?])
+    public static final int BUNDLE_HEADER_SIZE = GlobalParams.MSG_SIZE_NO_VALUES + Short.BYTES;
+
     public enum EchoMarker {
         ECHOSTR, ACKSTR;
         public static EchoMarker[] vals = values();
@@ -26,7 +34,9 @@ public class NetMessage {
     }
 
     public enum PayLoadKind {
-        PROPOSAL, ACK, NACK, DECIDED;
+        // PROPOSAL_DELTA carries only the values added since the proposer's previous round,
+        // BUNDLE packs several of the other kinds, for any agreements, from one source
+        PROPOSAL, ACK, NACK, PROPOSAL_DELTA, BUNDLE;
 
         public static PayLoadKind[] vals = values();
 
@@ -46,23 +56,54 @@ public class NetMessage {
     }
 
     public static NetMessage deserialize(byte[] data) {
-        ByteBuffer buff = ByteBuffer.wrap(data);
-        EchoMarker mk = EchoMarker.decode(buff.get());
-        short sender = buff.getShort();
-        short origin = buff.getShort();
-        int agreeId = buff.getInt();
-        int activeNum = buff.getInt();
-        PayLoadKind loadKind = PayLoadKind.decode(buff.get());
-        if (mk == EchoMarker.ACKSTR || loadKind == PayLoadKind.ACK || loadKind == PayLoadKind.DECIDED) {
-            return new NetMessage(mk, sender, origin, agreeId, activeNum, loadKind, null);
-        } else {
-            int size = buff.getInt();
-            HashSet<Integer> proposals = new HashSet<>(size);
-            for (int i = 0; i < size; i++) {
-                proposals.add(buff.getInt());
+        return new MessageView().wrap(ByteBuffer.wrap(data), 0, data.length).materialize();
+    }
+
+    // Used by MessageView: the raw values are only turned into a set when first read
+    static NetMessage fromRaw(EchoMarker mk, short sid, short soid, int agId, int propNum, PayLoadKind pt, int[] raw) {
+        if (carriesValues(mk, pt) && raw == null) {
+            throw new IllegalStateException("Deserialization error: missing values");
+        }
+        return new NetMessage(mk, sid, soid, agId, propNum, pt, null, raw, null);
+    }
+
+    static boolean carriesValues(EchoMarker mk, PayLoadKind pt) {
+        return !(mk == EchoMarker.ACKSTR || pt == PayLoadKind.ACK || pt == PayLoadKind.BUNDLE);
+    }
+
+    // One message standing for all parts; serial tells bundles from the same source apart
+    public static NetMessage bundle(short sid, int serial, List<NetMessage> parts) {
+        if (parts == null || parts.isEmpty() || parts.size() > 0xFFFF) {
+            throw new IllegalArgumentException("Bundle needs 1 to 65535 parts");
+        }
+        for (NetMessage part : parts) {
+            if (part.sourceId != sid || part.senderId != sid || part.isPureAck() || part.bundled != null) {
+                throw new IllegalArgumentException("Only own, plain messages can be bundled");
             }
-            return new NetMessage(mk, sender, origin, agreeId, activeNum, loadKind, proposals);
         }
+        return new NetMessage(EchoMarker.ECHOSTR, sid, sid, parts.get(0).agreementId, serial, PayLoadKind.BUNDLE,
+                null, null, parts);
+    }
+
+    // Used by MessageView for a decoded bundle
+    static NetMessage fromBundle(short sid, short soid, int agId, int serial, List<NetMessage> parts) {
+        return new NetMessage(EchoMarker.ECHOSTR, sid, soid, agId, serial, PayLoadKind.BUNDLE, null, null, parts);
+    }
+
+    // Bytes a message takes as one bundle entry
+    public static int bundledSize(NetMessage part) {
+        IntSet vals = part.getVals();
+        return Integer.BYTES * 2 + Byte.BYTES + (vals == null ? 0 : Integer.BYTES * (vals.size() + 1));
+    }
+
+    static int identityHash(short soid, int agId, int propNum, PayLoadKind pt) {
+        int prime = 31;
+        int result = 1;
+        result = prime * result + soid;
+        result = prime * result + agId;
+        result = prime * result + propNum;
+        result = prime * result + ((pt == null) ? 0 : pt.hashCode());
+        return result;
     }
 
     private final EchoMarker echoType;
@@ -71,9 +112,19 @@ public class NetMessage {
     private final int agreementId;
     private final int activePropNum;
     private final PayLoadKind payType;
-    private final Set<Integer> values;
+    // decoded messages keep their values raw until their (single) consumer first calls getVals()
+    private IntSet values;
+    private int[] rawValues;
+    private final List<NetMessage> bundled;
+    // the wire form, encoded once and then shared read-only by every carrier, peer and retransmission
+    private volatile byte[] encoded;
+
+    public NetMessage(EchoMarker mk, short sid, short soid, int agId, int propNum, PayLoadKind pt, IntSet vals) {
+        this(mk, sid, soid, agId, propNum, pt, vals, null, null);
+    }
 
-    public NetMessage(EchoMarker mk, short sid, short soid, int agId, int propNum, PayLoadKind pt, Set<Integer> vals) {
+    private NetMessage(EchoMarker mk, short sid, short soid, int agId, int propNum, PayLoadKind pt,
+                       IntSet vals, int[] raw, List<NetMessage> parts) {
         if (mk == null || pt == null) {
             throw new IllegalArgumentException("Null fields in message");
         }
@@ -86,13 +137,16 @@ public class NetMessage {
         this.agreementId = agId;
         this.activePropNum = propNum;
         this.payType = pt;
-        if (echoType == EchoMarker.ACKSTR || payType == PayLoadKind.ACK || payType == PayLoadKind.DECIDED) {
-            this.values = null;
-        } else {
-            if (vals == null) {
+        if (payType == PayLoadKind.BUNDLE && echoType == EchoMarker.ECHOSTR && parts == null) {
+            throw new IllegalArgumentException("Bundle without parts");
+        }
+        this.bundled = parts;
+        if (carriesValues(echoType, payType)) {
+            if (vals == null && raw == null) {
                 throw new IllegalArgumentException("Proposal values cannot be null");
             }
             this.values = vals;
+            this.rawValues = raw;
         }
     }
 
@@ -100,6 +154,22 @@ public class NetMessage {
         return echoType == EchoMarker.ACKSTR;
     }
 
+    // A lattice ACK/NACK, or a bundle carrying one: some proposer is waiting for it
+    public boolean isReply() {
+        if (isPureAck()) {
+            return false;
+        }
+        if (bundled == null) {
+            return payType == PayLoadKind.ACK || payType == PayLoadKind.NACK;
+        }
+        for (NetMessage part : bundled) {
+            if (part.isReply()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public boolean matchesAck(NetMessage m) {
         return isPureAck() && this.equals(m);
     }
@@ -108,14 +178,42 @@ public class NetMessage {
         return new NetMessage(EchoMarker.ACKSTR, ackSender, sourceId, agreementId, activePropNum, payType, null);
     }
 
+    // Encodes on first use only: the array is shared, callers must not modify it
     public byte[] serialize() {
-        ByteBuffer buffer = ByteBuffer.allocate(GlobalParams.MSG_SIZE_NO_VALUES + Integer.BYTES * (values == null ? 0 : values.size() + 1));
+        byte[] bytes = encoded;
+        if (bytes == null) {
+            bytes = bundled != null ? serializeBundle() : serializePlain();
+            encoded = bytes;
+        }
+        return bytes;
+    }
+
+    private byte[] serializePlain() {
+        IntSet vals = getVals();
+        ByteBuffer buffer = ByteBuffer.allocate(GlobalParams.MSG_SIZE_NO_VALUES + Integer.BYTES * (vals == null ? 0 : vals.size() + 1));
         buffer.put(echoType.encode()).putShort(senderId).putShort(sourceId).putInt(agreementId)
                 .putInt(activePropNum).put(payType.encode());
-        if (!(echoType == EchoMarker.ACKSTR || payType == PayLoadKind.ACK || payType == PayLoadKind.DECIDED)) {
-            buffer.putInt(values.size());
-            for (int v : values) {
-                buffer.putInt(v);
+        if (vals != null) {
+            buffer.putInt(vals.size());
+            vals.forEach(buffer::putInt);
+        }
+        return buffer.array();
+    }
+
+    private byte[] serializeBundle() {
+        int size = BUNDLE_HEADER_SIZE;
+        for (NetMessage part : bundled) {
+            size += bundledSize(part);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(echoType.encode()).putShort(senderId).putShort(sourceId).putInt(agreementId)
+                .putInt(activePropNum).put(payType.encode()).putShort((short) bundled.size());
+        for (NetMessage part : bundled) {
+            buffer.putInt(part.agreementId).putInt(part.activePropNum).put(part.payType.encode());
+            IntSet vals = part.getVals();
+            if (vals != null) {
+                buffer.putInt(vals.size());
+                vals.forEach(buffer::putInt);
             }
         }
         return buffer.array();
@@ -125,7 +223,7 @@ public class NetMessage {
     public String toString() {
         return "NetMessage [echoType=" + echoType + ", senderId=" + senderId + ", sourceId=" + sourceId
                 + ", agreementId=" + agreementId + ", activePropNumber=" + activePropNum + ", payloadType="
-                + payType + ", vals=" + values + "]";
+                + payType + ", vals=" + getVals() + "]";
     }
 
     public EchoMarker getEchoMarker() {
@@ -152,19 +250,22 @@ public class NetMessage {
         return payType;
     }
 
-    public Set<Integer> getVals() {
+    // Parts of a BUNDLE message, null for any other kind
+    public List<NetMessage> getBundled() {
+        return bundled;
+    }
+
+    public IntSet getVals() {
+        if (values == null && rawValues != null) {
+            values = IntSet.fromUnsorted(rawValues, rawValues.length);
+            rawValues = null;
+        }
         return values;
     }
 
     @Override
     public int hashCode() {
-        int prime = 31;
-        int result = 1;
-        result = prime * result + sourceId;
-        result = prime * result + agreementId;
-        result = prime * result + activePropNum;
-        result = prime * result + ((payType == null) ? 0 : payType.hashCode());
-        return result;
+        return identityHash(sourceId, agreementId, activePropNum, payType);
     }
 
     @Override
@@ -180,10 +281,14 @@ public class NetMessage {
     }
 
     // Replaces MessageToBeSent with NetCarrier as inner class
-    public class NetCarrier {
+    public class NetCarrier extends TimerWheel.Timeout {
         private final NetMessage message;
+        // the message's shared encoding; the sequence number is written in front of it when framed
         private final byte[] serializedMsg;
         private final short destId;
+        private final int linkSeq;
+        private volatile boolean acked;
+        private int retransmissions;
         private long sendTime;
         private long retryTimeout;
 
@@ -202,20 +307,62 @@ public class NetMessage {
             }
             this.destId = dest;
             this.message = m;
+            this.linkSeq = SequenceWindows.NO_SEQ;
+        }
+
+        // Sequenced-link carrier: the frame is prefixed with its per-destination sequence number
+        public NetCarrier(NetMessage m, short dest, int seq) {
+            if (m == null) {
+                throw new IllegalArgumentException("Cannot build NetCarrier with null message");
+            }
+            this.serializedMsg = m.serialize();
+            this.destId = dest;
+            this.message = m;
+            this.linkSeq = seq;
         }
 
         public NetMessage getMessage() {
             return message;
         }
 
-        public byte[] getSerializedMsg() {
-            return serializedMsg;
+        // Bytes the carrier takes in a datagram frame: its sequence number, if any, and the message
+        public int frameLength() {
+            return (linkSeq == SequenceWindows.NO_SEQ ? 0 : SequenceWindows.SEQ_HEADER_SIZE) + serializedMsg.length;
+        }
+
+        public void writeFrame(ByteBuffer buff) {
+            if (linkSeq != SequenceWindows.NO_SEQ) {
+                buff.putInt(linkSeq);
+            }
+            buff.put(serializedMsg);
         }
 
         public short getDest() {
             return destId;
         }
 
+        public int getLinkSeq() {
+            return linkSeq;
+        }
+
+        public int getRetransmissions() {
+            return retransmissions;
+        }
+
+        public void countRetransmission() {
+            retransmissions++;
+        }
+
+        public boolean isAcked() {
+            return acked;
+        }
+
+        // Must run on the link's event loop, as it also cancels the pending retransmission
+        public void markAcked() {
+            this.acked = true;
+            cancel();
+        }
+
         public long getTimeOfSending() {
             return sendTime;
         }
@@ -264,4 +411,8 @@ public class NetMessage {
         return new NetCarrier(this, destination, fullBuild);
     }
 
+    public NetCarrier toSend(short destination, int linkSeq) {
+        return new NetCarrier(this, destination, linkSeq);
+    }
+
 }
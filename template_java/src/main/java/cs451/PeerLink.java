@@ -0,0 +1,133 @@
+package cs451;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per-destination entry of the PerfectLinks peer table: its send lanes, an AIMD congestion
+ * window over unacknowledged messages, its RTT estimator and the batch being filled.
+ * Retransmissions bypass the window, see SendLanes. It also remembers when the peer was last
+ * heard from and the last "decided up to" watermark it piggybacked. Only offer(), queued(),
+ * lanes() and those two may be called outside the link's event loop.
+ */
+public class PeerLink {
+    private final short peerId;
+    private final InetSocketAddress address;
+    private final SendLanes lanes;
+    private final RttEstimator rtt;
+    private double cwnd;
+    private int inFlight;
+    private DatagramBatch openBatch;
+    private long lastSentAt;
+    private volatile long heardAt;
+    private final AtomicInteger watermark = new AtomicInteger(0);
+
+    public PeerLink(NodeAddress node, long now) {
+        if (node == null) {
+            throw new IllegalArgumentException("Null node for PeerLink");
+        }
+        this.peerId = node.getId();
+        this.address = node.getSocketAddress();
+        this.lanes = new SendLanes();
+        this.rtt = new RttEstimator();
+        this.cwnd = GlobalParams.PL_INITIAL_CWND;
+        this.lastSentAt = now;
+        this.heardAt = now;
+    }
+
+    // fresh messages from the layers above; callers bound the queue through queued()
+    public boolean offer(NetMessage.NetCarrier c) {
+        return lanes.offer(c);
+    }
+
+    // event loop only
+    public void offerRetransmission(NetMessage.NetCarrier c) {
+        lanes.offerRetransmit(c);
+    }
+
+    public int queued() {
+        return lanes.freshQueued();
+    }
+
+    public SendLanes lanes() {
+        return lanes;
+    }
+
+    public boolean hasSendable() {
+        return lanes.hasSendable(inFlight < (int) cwnd);
+    }
+
+    // Next message by lane priority and weight, fresh ones only while the window has room; null if none
+    public NetMessage.NetCarrier takeSendable() {
+        return lanes.take(inFlight < (int) cwnd);
+    }
+
+    public void onFirstSend() {
+        inFlight++;
+    }
+
+    // additive increase: about one more message per round trip
+    public void onAcked(NetMessage.NetCarrier c, long now, boolean sampleRtt) {
+        inFlight--;
+        if (sampleRtt) {
+            rtt.sample(c, now);
+        }
+        cwnd = Math.min(GlobalParams.PL_MAX_CWND, cwnd + 1.0 / cwnd);
+    }
+
+    // multiplicative decrease, at most once per RTO as the backoff itself
+    public void onTimeout(long now) {
+        if (rtt.backoff(now)) {
+            cwnd = Math.max(GlobalParams.PL_MIN_CWND, cwnd / 2);
+        }
+    }
+
+    public void onDatagramSent(long now) {
+        lastSentAt = now;
+    }
+
+    public long getLastSentAt() {
+        return lastSentAt;
+    }
+
+    // watermarks only grow, so a reordered older datagram cannot move it back; receive shards
+    // may call this concurrently
+    public void onDatagramReceived(int peerWatermark, long now) {
+        heardAt = now;
+        watermark.accumulateAndGet(peerWatermark, Integer::max);
+    }
+
+    public long getHeardAt() {
+        return heardAt;
+    }
+
+    public int getWatermark() {
+        return watermark.get();
+    }
+
+    public short getId() {
+        return peerId;
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    public long currentRto() {
+        return rtt.currentRto();
+    }
+
+    public DatagramBatch getOpenBatch() {
+        return openBatch;
+    }
+
+    public void setOpenBatch(DatagramBatch batch) {
+        this.openBatch = batch;
+    }
+
+    @Override
+    public String toString() {
+        return "PeerLink [id=" + peerId + ", " + lanes + ", inFlight=" + inFlight
+                + ", cwnd=" + cwnd + ", " + rtt + "]";
+    }
+}
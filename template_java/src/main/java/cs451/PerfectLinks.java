@@ -1,196 +1,897 @@
 package cs451;
 
-import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.io.IOException;
 
-public class PerfectLinks implements AutoCloseable, SharedInterfaces.ChannelSnapshot, Runnable {
-    private final DatagramSocket socket;
+/**
+ * Single event loop over a DatagramPort: it sleeps in the port until it is readable, a stalled
+ * batch becomes writable, new messages are scheduled or the next batching/ACK/retransmit/pacing
+ * deadline passes. Each peer has its own queue and congestion window, and sends are served
+ * round-robin over the peers that are ready. Every datagram piggybacks our "decided up to"
+ * watermark, and idle peers get heartbeats carrying it, so agreedWatermark() tells how far every
+ * live process decided. Time comes from a Clock, so the simulator can drive the loop itself
+ * through nextWakeup() and step() on a virtual one. In sequenced mode the port may fan incoming
+ * traffic out over receive shards: each decodes, deduplicates against the peer's receive window
+ * and delivers on its own thread, and forwards SACKs here, as send-side state is the loop's alone.
+ */
+public class PerfectLinks implements AutoCloseable, SharedInterfaces.ChannelSnapshot, SharedInterfaces.MsgTransport,
+        Runnable {
+    private final DatagramPort port;
+    private final SharedInterfaces.Clock clock;
     private final short selfId;
     private final Map<Short, NodeAddress> nodesMap;
-    private final ParticipantRole myRole;
-    private final SharedInterfaces.MsgReception parent;
-    private final ConcurrentMsgHistory deliveredSet;
-    private final ConcurrentMsgHistory ackedSet;
-    private final ConcurrentLinkedQueue<NetMessage.NetCarrier> pendingSends;
-    private final ConcurrentHashMap.KeySetView<NetMessage.NetCarrier, Boolean> retrySet;
-    private long baseTimeout = GlobalParams.PL_TIMEOUT_BEFORE_RESEND;
-    private long lastAdjust = System.currentTimeMillis();
+    private volatile SharedInterfaces.MsgReception parent;
+    // self-addressed messages that arrived before a receiver was attached
+    private final ConcurrentLinkedQueue<NetMessage> loopbackBacklog = new ConcurrentLinkedQueue<>();
+    // hashed mode only, sized for the largest agreement window
+    private final CompactMsgHistory deliveredSet;
+    private final PeerLink[] peerById;
+    private final PeerLink[] peerList;
+    private int rrCursor = 0;
+    private final TokenBucket pacer;
+    private final TimerWheel retryWheel;
+    private final Map<AckKey, NetMessage.NetCarrier> awaitingAck;
+    private final AckKey ackProbe = new AckKey();
+    // hashed mode only, by peer id: the link ACKs we owe each peer
+    private final OwedAcks[] owedAcks;
+    private final ByteBuffer sackScratch = ByteBuffer.allocate(SequenceWindows.MAX_SACK_SIZE);
+    private final ArrayDeque<DatagramBatch> stalledBatches;
+    private final ArrayDeque<DatagramBatch> spareBatches;
+    private final ByteBuffer recvBuffer;
+    private final MessageView recvView = new MessageView();
+    private final LinkSink linkSink = new LinkSink();
+    private final SequenceWindows seqWindows;
+    private final ReceiveShard[] shards;
+    // SACK frames the shards read, applied by the loop
+    private final ConcurrentLinkedQueue<byte[]> forwardedSacks = new ConcurrentLinkedQueue<>();
+    private static final long BATCH_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(GlobalParams.PL_MAX_BATCH_DELAY);
+    private static final long HEARTBEAT_NANOS = TimeUnit.MILLISECONDS.toNanos(GlobalParams.PL_HEARTBEAT_INTERVAL);
+    private static final long SUSPECT_NANOS = TimeUnit.MILLISECONDS.toNanos(GlobalParams.PL_SUSPECT_AFTER);
+    private volatile int localWatermark = 0;
     private final int ds;
+    // link thread only: messages sent for the first time, and sent again after a timeout
+    private long firstSends = 0;
+    private long retransmissions = 0;
+    // by peer id, index 0 counts datagrams from unknown addresses
+    private final Metrics.Counter[] datagramsSent;
+    private final Metrics.Counter[] bytesSent;
+    private final Metrics.Counter[] datagramsReceived;
+    private final Metrics.Counter[] bytesReceived;
+    private final Metrics.Counter retransmitted = Metrics.global().counter("link.retransmissions");
+    private final Metrics.Counter duplicatesDropped = Metrics.global().counter("link.duplicates_dropped");
 
-    // Constructor for initiator
     public PerfectLinks(short myId, Map<Short, NodeAddress> hMap, ConfigurationFileReader.NestedConfig config)
-            throws SocketException, UnknownHostException {
-        if (hMap == null || config == null) {
-            throw new IllegalArgumentException("Null arguments for ReliableChannel (initiator)");
+            throws IOException {
+        this(myId, hMap, requireConfig(config).getDs(), new UdpPort(myId, hMap, receiveSockets()), System::nanoTime);
+    }
+
+    private static int receiveSockets() {
+        if (GlobalParams.PL_RECEIVE_SHARDS > 1 && !GlobalParams.PL_SEQUENCED_LINKS) {
+            System.err.println("Receive shards need sequenced links, receiving on a single socket");
+            return 1;
+        }
+        return Integer.max(1, GlobalParams.PL_RECEIVE_SHARDS);
+    }
+
+    PerfectLinks(short myId, Map<Short, NodeAddress> hMap, int ds, DatagramPort port, SharedInterfaces.Clock clock) {
+        if (hMap == null || port == null || clock == null) {
+            throw new IllegalArgumentException("Null arguments for ReliableChannel");
         }
         this.selfId = myId;
         this.nodesMap = hMap;
-        NodeAddress selfHost = this.nodesMap.get(myId);
-        InetAddress selfIP = InetAddress.getByName(selfHost.getIp());
-        this.socket = new DatagramSocket(null);
-        this.socket.setReuseAddress(true);
-        this.socket.bind(new InetSocketAddress(selfIP, selfHost.getPortNumber()));
-
-        this.socket.setSoTimeout(GlobalParams.SOCKET_TIMEOUT);
-        this.ackedSet = new ConcurrentMsgHistory(config.getP(), config.getVs());
-        this.myRole = ParticipantRole.INITIATOR;
-        this.pendingSends = new ConcurrentLinkedQueue<>();
-        this.retrySet = ConcurrentHashMap.newKeySet(GlobalParams.MAX_PL_QUEUE_SIZE);
-        this.ds = config.getDs();
+        this.port = port;
+        this.clock = clock;
+        this.ds = ds;
+        this.deliveredSet = GlobalParams.PL_SEQUENCED_LINKS ? null
+                : new CompactMsgHistory(hMap.size(), GlobalParams.LA_MAX_WINDOW);
+        this.peerList = new PeerLink[hMap.size()];
+        this.peerById = new PeerLink[hMap.size() + 1];
+        int idx = 0;
+        long start = clock.nanoTime();
+        for (NodeAddress node : hMap.values()) {
+            PeerLink pl = new PeerLink(node, start);
+            peerList[idx++] = pl;
+            peerById[node.getId()] = pl;
+        }
+        this.pacer = new TokenBucket(GlobalParams.PL_PACING_BYTES_PER_SEC, GlobalParams.PL_PACING_BURST_BYTES,
+                clock.nanoTime());
+        this.retryWheel = new TimerWheel(GlobalParams.PL_TIMER_WHEEL_SLOTS,
+                TimeUnit.MICROSECONDS.toNanos(GlobalParams.PL_TIMER_TICK_MICROS), clock.nanoTime());
+        this.stalledBatches = new ArrayDeque<>();
+        this.spareBatches = new ArrayDeque<>();
+        this.recvBuffer = ByteBuffer.allocateDirect(maxDatagramSize());
+        this.seqWindows = GlobalParams.PL_SEQUENCED_LINKS ? new SequenceWindows(myId, hMap.keySet()) : null;
+        // hashed mode only: finds the carrier a link-level ACK refers to
+        this.awaitingAck = seqWindows == null ? new HashMap<>(GlobalParams.MAX_PL_QUEUE_SIZE) : null;
+        this.owedAcks = seqWindows == null ? new OwedAcks[peerById.length] : null;
+        for (int id = 0; owedAcks != null && id < owedAcks.length; id++) {
+            owedAcks[id] = peerById[id] == null ? null : new OwedAcks();
+        }
         this.parent = null;
-        this.deliveredSet = null;
+        if (seqWindows == null && !port.receiveShards().isEmpty()) {
+            throw new IllegalArgumentException("Receive shards need sequenced links");
+        }
+        this.shards = new ReceiveShard[port.receiveShards().size()];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new ReceiveShard(i + 1, port.receiveShards().get(i));
+        }
+
+        Metrics metrics = Metrics.global();
+        this.datagramsSent = new Metrics.Counter[peerById.length];
+        this.bytesSent = new Metrics.Counter[peerById.length];
+        this.datagramsReceived = new Metrics.Counter[peerById.length];
+        this.bytesReceived = new Metrics.Counter[peerById.length];
+        for (int id = 0; id < peerById.length; id++) {
+            String peer = id == 0 ? "link.peer.unknown." : "link.peer." + id + ".";
+            datagramsSent[id] = metrics.counter(peer + "datagrams_sent");
+            bytesSent[id] = metrics.counter(peer + "bytes_sent");
+            datagramsReceived[id] = metrics.counter(peer + "datagrams_received");
+            bytesReceived[id] = metrics.counter(peer + "bytes_received");
+        }
+        // read off the link thread: approximate, but never torn
+        metrics.gauge("link.pending_sends", () -> {
+            long queued = 0;
+            for (PeerLink peer : peerList) {
+                queued += peer.queued();
+            }
+            return queued;
+        });
+        for (SendLanes.Lane lane : SendLanes.Lane.vals) {
+            metrics.gauge("link.lane." + lane.name().toLowerCase(Locale.ROOT) + ".depth", () -> {
+                long depth = 0;
+                for (PeerLink peer : peerList) {
+                    depth += peer.lanes().depth(lane);
+                }
+                return depth;
+            });
+        }
+        metrics.gauge("link.retry_set", retryWheel::size);
+        metrics.gauge("link.suspected_peers", () -> {
+            long now = this.clock.nanoTime();
+            long suspected = 0;
+            for (PeerLink peer : peerList) {
+                if (peer.getId() != selfId && suspected(peer, now)) {
+                    suspected++;
+                }
+            }
+            return suspected;
+        });
     }
 
-    // Constructor for follower
-    public PerfectLinks(short myId, Map<Short, NodeAddress> nodes, SharedInterfaces.MsgReception prt,
-                        ConfigurationFileReader.NestedConfig cfg, ChannelState chSt) {
-        if (prt == null || nodes == null || cfg == null || chSt == null) {
-            throw new IllegalArgumentException("Null args for ReliableChannel (follower)");
+    private static ConfigurationFileReader.NestedConfig requireConfig(ConfigurationFileReader.NestedConfig config) {
+        if (config == null) {
+            throw new IllegalArgumentException("Null arguments for ReliableChannel");
+        }
+        return config;
+    }
+
+    public SharedInterfaces.Clock clock() {
+        return clock;
+    }
+
+    // Read on the link thread, or by whoever drives step()
+    public long sentMessages() {
+        return firstSends;
+    }
+
+    public long retransmittedMessages() {
+        return retransmissions;
+    }
+
+    // Messages are read off the socket only once a receiver is attached
+    public void attachReceiver(SharedInterfaces.MsgReception prt) {
+        if (prt == null) {
+            throw new IllegalArgumentException("Null receiver for ReliableChannel");
         }
-        this.selfId = myId;
-        this.nodesMap = nodes;
-        this.socket = chSt.getSocket();
-        this.ackedSet = chSt.getAckSet();
-        this.pendingSends = chSt.getOutbound();
-        this.deliveredSet = new ConcurrentMsgHistory(cfg.getP(), cfg.getVs());
         this.parent = prt;
-        this.myRole = ParticipantRole.FOLLOWER;
-        this.ds = cfg.getDs();
-        this.retrySet = null;
+        NetMessage early;
+        while ((early = loopbackBacklog.poll()) != null) {
+            deliverLocal(prt, early);
+        }
+        port.wakeup();
+        for (ReceiveShard shard : shards) {
+            shard.shardPort.wakeup();
+        }
     }
 
+    @Override
     public boolean scheduleToSend(NetMessage msg, short dest) {
         if (msg == null) {
             throw new IllegalArgumentException("Cannot send null message");
         }
-        return pendingSends.size() > GlobalParams.MAX_PL_QUEUE_SIZE ? false : pendingSends.add(msg.toSend(dest, true));
+        if (dest == selfId) {
+            loopback(msg);
+            return true;
+        }
+        boolean queued = enqueue(msg, dest);
+        if (queued) {
+            port.wakeup();
+        }
+        return queued;
+    }
+
+    // The message is encoded once; every peer's carrier, and every retransmission, frames those same
+    // bytes. Peers whose queue is full keep their bit, to be retried with the same set
+    @Override
+    public boolean broadcast(NetMessage msg, BitSet dests) {
+        if (msg == null || dests == null) {
+            throw new IllegalArgumentException("Cannot broadcast null message");
+        }
+        boolean queued = false;
+        for (int d = dests.nextSetBit(0); d >= 0; d = dests.nextSetBit(d + 1)) {
+            if (d == selfId) {
+                loopback(msg);
+                dests.clear(d);
+            } else if (enqueue(msg, (short) d)) {
+                dests.clear(d);
+                queued = true;
+            }
+        }
+        if (queued) {
+            port.wakeup();
+        }
+        return dests.isEmpty();
+    }
+
+    private boolean enqueue(NetMessage msg, short dest) {
+        PeerLink peer = peerById[dest];
+        if (peer.queued() >= GlobalParams.MAX_PL_QUEUE_SIZE) {
+            return false;
+        }
+        if (seqWindows == null) {
+            return peer.offer(msg.toSend(dest, true));
+        }
+        NetMessage.NetCarrier c = seqWindows.peer(dest).enqueue(msg);
+        return c != null && peer.offer(c);
+    }
+
+    // Self-addressed messages skip serialization, the socket and link ACKs: delivered exactly once, right away
+    private void loopback(NetMessage msg) {
+        SharedInterfaces.MsgReception prt = parent;
+        if (prt == null) {
+            loopbackBacklog.add(msg);
+            prt = parent;
+            if (prt == null) {
+                return;
+            }
+            // attached meanwhile: drain here, as attachReceiver may have missed our message
+            NetMessage early;
+            while ((early = loopbackBacklog.poll()) != null) {
+                deliverLocal(prt, early);
+            }
+            return;
+        }
+        deliverLocal(prt, msg);
+    }
+
+    // a broadcast bundle reaches us too: its parts are delivered as they would be off the wire
+    private static void deliverLocal(SharedInterfaces.MsgReception prt, NetMessage msg) {
+        if (msg.getBundled() == null) {
+            prt.receiveDeliveredMessage(msg);
+            return;
+        }
+        for (NetMessage part : msg.getBundled()) {
+            prt.receiveDeliveredMessage(part);
+        }
     }
 
     public void flush(int agreementId) {
-        ackedSet.flush(agreementId);
         if (deliveredSet != null) {
             deliveredSet.flush(agreementId);
         }
     }
 
+    // Every agreement below w is decided here; piggybacked from now on. Any thread
+    public void publishWatermark(int w) {
+        localWatermark = w;
+    }
+
+    // Lowest watermark over ourselves and every peer not suspected of having crashed: all of
+    // them decided every agreement below it. Any thread
+    public int agreedWatermark() {
+        long now = clock.nanoTime();
+        int agreed = localWatermark;
+        for (PeerLink peer : peerList) {
+            if (peer.getId() != selfId && !suspected(peer, now)) {
+                agreed = Integer.min(agreed, peer.getWatermark());
+            }
+        }
+        return agreed;
+    }
+
+    // Lowest watermark over ourselves and every peer, suspected or not: even one that was only slow
+    // or stopped for a while no longer needs answers below it. Any thread
+    public int confirmedWatermark() {
+        int confirmed = localWatermark;
+        for (PeerLink peer : peerList) {
+            if (peer.getId() != selfId) {
+                confirmed = Integer.min(confirmed, peer.getWatermark());
+            }
+        }
+        return confirmed;
+    }
+
+    private static boolean suspected(PeerLink peer, long now) {
+        return now - peer.getHeardAt() > SUSPECT_NANOS;
+    }
+
     @Override
     public void close() {
-        if (socket != null && !socket.isClosed()) {
-            socket.close();
+        try {
+            port.close();
+        } catch (IOException e) {
+            System.err.println("Error closing channel");
+            e.printStackTrace();
         }
     }
 
     @Override
     public void run() {
+        Future<?>[] shardStages = new Future<?>[shards.length];
         try {
-            if (myRole == ParticipantRole.INITIATOR) {
-                while (!Thread.currentThread().isInterrupted()) {
-                    runInitiatorSide();
-                }
-            } else {
-                while (!Thread.currentThread().isInterrupted()) {
-                    runFollowerSide();
+            for (int i = 0; i < shards.length; i++) {
+                shardStages[i] = StageExecutor.global().start("Host " + selfId + " Receive Shard " + (i + 1),
+                        shards[i]);
+            }
+            while (!Thread.currentThread().isInterrupted()) {
+                pollOnce();
+            }
+        } catch (IOException e) {
+            System.err.println("ReliableChannel I/O failure");
+            e.printStackTrace();
+        } catch (IllegalStateException e) {
+            // the executor had no thread left for a shard
+            System.err.println("ReliableChannel could not start its receive shards");
+            e.printStackTrace();
+        } finally {
+            System.err.println("ReliableChannel stopped");
+            for (Future<?> stage : shardStages) {
+                if (stage != null) {
+                    stage.cancel(true);
                 }
             }
-        } catch (InterruptedException e) {
-            System.err.println("ReliableChannel interrupted");
-            Thread.currentThread().interrupt();
+            close();
+        }
+    }
+
+    private void pollOnce() throws IOException {
+        long now = clock.nanoTime();
+        port.await(parent != null, !stalledBatches.isEmpty(), nextWakeup(now), now);
+        step();
+    }
+
+    // When the loop has work next: now if it can send right away, else its earliest deadline
+    long nextWakeup(long now) {
+        if (canWrite() && (hasOwedAcks() || (pacer.hasTokens(now) && hasSendable()))) {
+            return now;
         }
+        return nextDeadline(now);
     }
 
-    private void runInitiatorSide() throws InterruptedException {
-        NetMessage.NetCarrier carrier = pendingSends.poll();
-        if (carrier != null) {
-            sendDatagram(carrier);
-            if (!carrier.getMessage().isPureAck()) {
-                carrier.setTimeOfSending(System.currentTimeMillis());
-                carrier.setTimeout(baseTimeout);
-                retrySet.add(carrier);
+    // One pass of the loop without waiting: receive, retransmit, send
+    void step() throws IOException {
+        if (parent != null) {
+            receiveAll();
+        }
+        long now = clock.nanoTime();
+        applyForwardedSacks(now);
+        if (owedAcks != null) {
+            stageOwedAcks(now);
+        }
+        retryExpired(now);
+        if (canWrite()) {
+            stageOutbound(now);
+        }
+        if (seqWindows != null) {
+            stageDueSacks(now);
+        }
+        flushBatches(now);
+        sendHeartbeats(now);
+    }
+
+    // Earliest batching, delayed-ACK, retransmission or pacing deadline, Long.MAX_VALUE if there is none
+    private long nextDeadline(long now) {
+        long deadline = retryWheel.nextExpiry();
+        for (PeerLink peer : peerList) {
+            DatagramBatch batch = peer.getOpenBatch();
+            if (batch != null && !batch.isEmpty()) {
+                deadline = Long.min(deadline, batch.getOpenedAt() + BATCH_DELAY_NANOS);
+            }
+        }
+        if (seqWindows != null) {
+            deadline = Long.min(deadline, seqWindows.nextSackDeadline());
+        }
+        if (!pacer.hasTokens(now) && hasSendable()) {
+            deadline = Long.min(deadline, pacer.nextAvailable(now));
+        }
+        // a peer with a batch open hears from us when it goes out anyway
+        for (PeerLink peer : peerList) {
+            DatagramBatch batch = peer.getOpenBatch();
+            if (peer.getId() != selfId && canWrite() && (batch == null || batch.isEmpty())) {
+                deadline = Long.min(deadline, peer.getLastSentAt() + HEARTBEAT_NANOS);
             }
-        } else {
-            Thread.sleep(GlobalParams.SLEEP_BEFORE_NEXT_POLL);
         }
+        return deadline;
+    }
 
-        long now = System.currentTimeMillis();
-        final AtomicInteger retried = new AtomicInteger(0);
-        int retryCount = retrySet.size();
-        retrySet.removeIf(x -> {
-            if (ackedSet.known(x)) {
-                return true;
-            } else if ((now - x.getTimeOfSending()) > x.getTimeout()) {
-                pendingSends.add(x);
-                retried.incrementAndGet();
+    private boolean hasOwedAcks() {
+        if (owedAcks != null) {
+            for (OwedAcks owed : owedAcks) {
+                if (owed != null && !owed.isEmpty()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean hasSendable() {
+        for (PeerLink peer : peerList) {
+            if (peer.hasSendable()) {
                 return true;
             }
-            return false;
+        }
+        return false;
+    }
+
+    // Round-robin over the peers whose window allows a send, one message per peer per pass
+    private void stageOutbound(long now) throws IOException {
+        int drained = 0;
+        boolean progress = true;
+        while (progress && drained < GlobalParams.PL_MAX_BATCH_DRAIN) {
+            progress = false;
+            for (int i = 0; i < peerList.length; i++) {
+                if (!canWrite() || !pacer.hasTokens(now)) {
+                    return;
+                }
+                PeerLink peer = peerList[rrCursor];
+                rrCursor = (rrCursor + 1) % peerList.length;
+                NetMessage.NetCarrier carrier = peer.takeSendable();
+                if (carrier == null) {
+                    continue;
+                }
+                pacer.tryConsume(carrier.frameLength(), now);
+                stageForBatch(peer, carrier, now);
+                if (carrier.getRetransmissions() == 0) {
+                    firstSends++;
+                    peer.onFirstSend();
+                    trackForAck(carrier, now);
+                } else {
+                    retransmissions++;
+                    retransmitted.inc();
+                }
+                long rto = peer.currentRto();
+                carrier.setTimeOfSending(now);
+                carrier.setTimeout(rto);
+                retryWheel.schedule(carrier, now + rto);
+                progress = true;
+                drained++;
+            }
+        }
+    }
+
+    private void trackForAck(NetMessage.NetCarrier carrier, long now) {
+        if (awaitingAck != null) {
+            NetMessage.NetCarrier older = awaitingAck.put(new AckKey().set(carrier), carrier);
+            if (older != null && older != carrier) {
+                // superseded by an identical message
+                older.markAcked();
+                peerById[older.getDest()].onAcked(older, now, false);
+            }
+        }
+    }
+
+    private void retryExpired(long now) {
+        retryWheel.expire(now, t -> {
+            NetMessage.NetCarrier c = (NetMessage.NetCarrier) t;
+            PeerLink peer = peerById[c.getDest()];
+            c.countRetransmission();
+            peer.onTimeout(now);
+            peer.offerRetransmission(c);
         });
-        if (retried.get() > retryCount / 4 && (now - lastAdjust) > baseTimeout) {
-            baseTimeout <<= 1;
-            lastAdjust = now;
-            System.out.println("Adjusted Timeout to " + baseTimeout);
+    }
+
+    private void onAcked(NetMessage.NetCarrier c, long now) {
+        c.markAcked();
+        peerById[c.getDest()].onAcked(c, now, true);
+    }
+
+    // Queues the SACKs whose delayed-ACK timer ran out
+    private void stageDueSacks(long now) throws IOException {
+        for (SequenceWindows.PeerWindow pw : seqWindows.allPeers()) {
+            if (canWrite() && pw.sackDue(now)) {
+                int length = pw.buildSack(sackScratch);
+                pacer.tryConsume(length, now);
+                stageForBatch(peerById[pw.getId()], sackScratch.array(), 0, length, now);
+            }
         }
     }
 
-    private void runFollowerSide() {
-        receiveAndHandle();
+    // Hashed mode: queues the link ACKs owed to every peer ahead of its other traffic
+    private void stageOwedAcks(long now) throws IOException {
+        for (PeerLink peer : peerList) {
+            OwedAcks owed = owedAcks[peer.getId()];
+            if (!owed.isEmpty()) {
+                stageOwedAcks(peer, owed, now);
+            }
+        }
     }
 
-    private void receiveAndHandle() {
-        if (myRole != ParticipantRole.FOLLOWER) {
-            throw new IllegalStateException("Initiator cannot deliver messages");
+    private void stageOwedAcks(PeerLink peer, OwedAcks owed, long now) throws IOException {
+        if (!canWrite()) {
+            return;
         }
-        NetMessage msg = fetchMessage();
-        if (msg != null && !deliveredSet.known(msg.toSend(selfId, false)) && !msg.isPureAck()) {
-            parent.receiveDeliveredMessage(msg);
-            deliveredSet.record(msg.toSend(selfId, false));
+        int length = owed.writer.position();
+        pacer.tryConsume(length, now);
+        for (int at = 0; at < length; at += GlobalParams.MSG_SIZE_NO_VALUES) {
+            stageForBatch(peer, owed.frames, at, GlobalParams.MSG_SIZE_NO_VALUES, now);
         }
+        owed.writer.clear();
     }
 
-    private void sendDatagram(NetMessage.NetCarrier c) {
-        if (c == null) {
-            throw new IllegalArgumentException("Cannot send null carrier");
+    private void receiveAll() throws IOException {
+        short from;
+        while ((from = port.receive(recvBuffer)) >= 0) {
+            recvBuffer.flip();
+            long now = clock.nanoTime();
+            noteDatagram(from, recvBuffer, now);
+            if (seqWindows != null) {
+                // sequence windows already drop duplicates
+                seqWindows.readDatagram(recvBuffer, now, recvView, linkSink);
+            } else {
+                readHashedDatagram(recvBuffer, now);
+            }
+            recvBuffer.clear();
         }
-        NodeAddress dest = nodesMap.get(c.getDest());
-        byte[] data = c.getSerializedMsg();
-        DatagramPacket pkt = new DatagramPacket(data, data.length, dest.getSocketAddress());
-        try {
-            socket.send(pkt);
-        } catch (IOException e) {
-            System.err.println("Error sending datagram");
-            e.printStackTrace();
+    }
+
+    // Counts a received datagram and takes in its sender's watermark; any receiving thread
+    private void noteDatagram(short from, ByteBuffer datagram, long now) {
+        if (from < datagramsReceived.length) {
+            datagramsReceived[from].inc();
+            bytesReceived[from].add(datagram.remaining());
+            if (from > 0 && datagram.remaining() >= NetMessage.BATCH_HEADER_SIZE) {
+                peerById[from].onDatagramReceived(DatagramBatch.watermarkOf(datagram), now);
+            }
         }
     }
 
-    private NetMessage fetchMessage() {
-        byte[] buffer = new byte[16 + Integer.BYTES * (ds + 1)];
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-        try {
-            socket.receive(packet);
-        } catch (IOException e) {
-            if (!(e instanceof SocketTimeoutException)) {
-                System.err.println("Error receiving datagram");
-                e.printStackTrace();
+    private void applyForwardedSacks(long now) {
+        byte[] sack;
+        while ((sack = forwardedSacks.poll()) != null) {
+            seqWindows.applySack(ByteBuffer.wrap(sack), sack.length, now, linkSink);
+        }
+    }
+
+    // Hands a fresh message, or the parts of a bundle, to the layer above; any receiving thread
+    private void deliverFresh(MessageView msg) {
+        NetMessage m = msg.materialize();
+        if (m.getBundled() == null) {
+            parent.receiveDeliveredMessage(m);
+            return;
+        }
+        for (NetMessage part : m.getBundled()) {
+            parent.receiveDeliveredMessage(part);
+        }
+    }
+
+    private int maxDatagramSize() {
+        int largestMsg = SequenceWindows.SEQ_HEADER_SIZE + GlobalParams.MSG_SIZE_NO_VALUES + Integer.BYTES * (ds + 1);
+        return Integer.max(GlobalParams.PL_BATCH_MTU,
+                NetMessage.BATCH_HEADER_SIZE + NetMessage.FRAME_HEADER_SIZE + largestMsg);
+    }
+
+    private boolean canWrite() {
+        return stalledBatches.isEmpty();
+    }
+
+    private DatagramBatch openBatch(PeerLink peer) {
+        DatagramBatch batch = spareBatches.poll();
+        if (batch == null) {
+            batch = new DatagramBatch(GlobalParams.PL_BATCH_MTU, maxDatagramSize());
+        }
+        batch.reuseFor(peer.getId());
+        peer.setOpenBatch(batch);
+        return batch;
+    }
+
+    private void stageForBatch(PeerLink peer, byte[] data, int offset, int length, long now) throws IOException {
+        DatagramBatch batch = batchWithRoom(peer, length);
+        batch.append(data, offset, length, now);
+        if (batch.isFull()) {
+            sendDatagram(batch);
+        }
+    }
+
+    private void stageForBatch(PeerLink peer, NetMessage.NetCarrier carrier, long now) throws IOException {
+        DatagramBatch batch = batchWithRoom(peer, carrier.frameLength());
+        batch.append(carrier, now);
+        if (batch.isFull()) {
+            sendDatagram(batch);
+        }
+    }
+
+    // The peer's open batch, sent and replaced first if a frame of that length does not fit
+    private DatagramBatch batchWithRoom(PeerLink peer, int length) throws IOException {
+        DatagramBatch batch = peer.getOpenBatch();
+        if (batch == null) {
+            batch = openBatch(peer);
+        }
+        if (!batch.fits(length)) {
+            sendDatagram(batch);
+            batch = peer.getOpenBatch();
+        }
+        return batch;
+    }
+
+    // A header-only datagram to every peer we have been silent towards, unless a batch is about to go
+    private void sendHeartbeats(long now) throws IOException {
+        for (PeerLink peer : peerList) {
+            if (peer.getId() == selfId || !canWrite() || now - peer.getLastSentAt() < HEARTBEAT_NANOS) {
+                continue;
+            }
+            DatagramBatch batch = peer.getOpenBatch();
+            if (batch == null) {
+                batch = openBatch(peer);
             }
-            return null;
+            if (batch.isEmpty()) {
+                // a heartbeat the socket refuses is not worth retrying: the next one follows soon
+                writeOut(batch);
+                batch.reuseFor(peer.getId());
+                peer.onDatagramSent(now);
+            }
+        }
+    }
+
+    private void flushBatches(long now) throws IOException {
+        while (!stalledBatches.isEmpty() && writeOut(stalledBatches.peek())) {
+            spareBatches.add(stalledBatches.poll());
+        }
+        for (PeerLink peer : peerList) {
+            DatagramBatch batch = peer.getOpenBatch();
+            if (canWrite() && batch != null && batch.expired(now, BATCH_DELAY_NANOS)) {
+                sendDatagram(batch);
+            }
+        }
+    }
+
+    // Sends the batch, or parks it until the socket is writable again and opens a fresh one
+    private void sendDatagram(DatagramBatch batch) throws IOException {
+        if (batch == null || batch.isEmpty()) {
+            throw new IllegalArgumentException("Cannot send empty batch");
+        }
+        if (canWrite() && writeOut(batch)) {
+            batch.reuseFor(batch.getDest());
+        } else {
+            stalledBatches.add(batch);
+            openBatch(peerById[batch.getDest()]);
+        }
+    }
+
+    private boolean writeOut(DatagramBatch batch) throws IOException {
+        ByteBuffer datagram = batch.seal(localWatermark);
+        int bytes = datagram.remaining();
+        if (!port.send(datagram, batch.getDest())) {
+            return false;
         }
-        NetMessage mm = NetMessage.deserialize(packet.getData());
-        if (mm != null) {
+        peerById[batch.getDest()].onDatagramSent(clock.nanoTime());
+        datagramsSent[batch.getDest()].inc();
+        bytesSent[batch.getDest()].add(bytes);
+        return true;
+    }
+
+    // Hashed mode: every frame is a bare message, duplicates are caught by deliveredSet
+    private void readHashedDatagram(ByteBuffer datagram, long now) throws IOException {
+        int length = datagram.limit();
+        int count = DatagramBatch.countOf(datagram);
+        datagram.position(NetMessage.BATCH_HEADER_SIZE);
+        for (int i = 0; i < count; i++) {
+            int frameLen = datagram.getShort() & 0xFFFF;
+            int next = datagram.position() + frameLen;
+            if (next > length) {
+                throw new IllegalStateException("Deserialization error: truncated batch");
+            }
+            MessageView mm = recvView.wrap(datagram, datagram.position(), frameLen);
             if (mm.isPureAck()) {
-                ackedSet.record(mm.toSend(mm.getSenderId(), false));
+                NetMessage.NetCarrier sent = awaitingAck.remove(ackProbe.set(mm));
+                if (sent != null) {
+                    onAcked(sent, now);
+                }
             } else {
-                pendingSends.add(mm.ackReply(selfId).toSend(mm.getSenderId(), true));
-                return mm;
+                oweAck(mm, now);
+                if (mm.isBundle()) {
+                    // the bundle is acked as a whole, but its parts are deduplicated one by one
+                    for (NetMessage part : mm.materialize().getBundled()) {
+                        if (deliveredSet.record(part.getAgreementId(), part.getSourceId(), part.getPayloadType(),
+                                part.getActivePropNumber())) {
+                            parent.receiveDeliveredMessage(part);
+                        } else {
+                            duplicatesDropped.inc();
+                        }
+                    }
+                } else if (deliveredSet.record(mm.getAgreementId(), mm.getSourceId(), mm.getPayloadType(),
+                        mm.getActivePropNumber())) {
+                    parent.receiveDeliveredMessage(mm.materialize());
+                } else {
+                    duplicatesDropped.inc();
+                }
+            }
+            datagram.position(next);
+        }
+    }
+
+    // Encodes our ACK for mm into the sender's owed ACKs; should those still be full after trying
+    // to send them, the ACK is dropped and the retransmission of mm will be acked instead
+    private void oweAck(MessageView mm, long now) throws IOException {
+        short sender = mm.getSenderId();
+        OwedAcks owed = owedAcks[sender];
+        if (owed.isFull()) {
+            stageOwedAcks(peerById[sender], owed, now);
+        }
+        if (!owed.isFull()) {
+            mm.writeAckReply(owed.writer, selfId);
+        }
+    }
+
+    private class LinkSink implements SequenceWindows.DatagramSink, SequenceWindows.AckSink {
+        @Override
+        public void sack(ByteBuffer buff, int end, long now) {
+            seqWindows.applySack(buff, end, now, this);
+        }
+
+        @Override
+        public void acked(NetMessage.NetCarrier carrier, long now) {
+            onAcked(carrier, now);
+        }
+
+        @Override
+        public void duplicate() {
+            duplicatesDropped.inc();
+        }
+
+        @Override
+        public void fresh(MessageView msg) {
+            deliverFresh(msg);
+        }
+    }
+
+    // Drains one socket of the port's receive group on its own thread. Receive windows are locked
+    // per peer, and the kernel keeps a peer on one socket, so shards rarely contend on them
+    private class ReceiveShard implements Runnable, SequenceWindows.DatagramSink {
+        private final DatagramPort shardPort;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(maxDatagramSize());
+        private final MessageView view = new MessageView();
+        private final Metrics.Counter datagrams;
+
+        private ReceiveShard(int index, DatagramPort shardPort) {
+            this.shardPort = shardPort;
+            this.datagrams = Metrics.global().counter("link.receive_shard." + index + ".datagrams");
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    // like the loop, leaves datagrams in the socket until a receiver is attached
+                    boolean attached = parent != null;
+                    shardPort.await(attached, false, Long.MAX_VALUE, clock.nanoTime());
+                    if (attached) {
+                        drain();
+                    }
+                }
+            } catch (IOException e) {
+                if (!Thread.currentThread().isInterrupted()) {
+                    System.err.println("Receive shard I/O failure");
+                    e.printStackTrace();
+                }
             }
         }
-        return null;
+
+        private void drain() throws IOException {
+            short from;
+            boolean received = false;
+            while ((from = shardPort.receive(buffer)) >= 0) {
+                buffer.flip();
+                long now = clock.nanoTime();
+                datagrams.inc();
+                noteDatagram(from, buffer, now);
+                seqWindows.readDatagram(buffer, now, view, this);
+                buffer.clear();
+                received = true;
+            }
+            if (received) {
+                // we now owe SACKs: the loop has to re-arm its delayed-ACK deadline
+                port.wakeup();
+            }
+        }
+
+        @Override
+        public void sack(ByteBuffer buff, int end, long now) {
+            byte[] frame = new byte[end - buff.position()];
+            buff.get(frame);
+            forwardedSacks.add(frame);
+            port.wakeup();
+        }
+
+        @Override
+        public void duplicate() {
+            duplicatesDropped.inc();
+        }
+
+        @Override
+        public void fresh(MessageView msg) {
+            deliverFresh(msg);
+        }
+    }
+
+    // Hashed mode: link ACK frames owed to one peer, back to back in a buffer allocated once
+    private static final class OwedAcks {
+        private final byte[] frames = new byte[GlobalParams.PL_MAX_OWED_ACKS * GlobalParams.MSG_SIZE_NO_VALUES];
+        private final ByteBuffer writer = ByteBuffer.wrap(frames);
+
+        boolean isEmpty() {
+            return writer.position() == 0;
+        }
+
+        boolean isFull() {
+            return writer.remaining() < GlobalParams.MSG_SIZE_NO_VALUES;
+        }
+    }
+
+    // Hashed mode: identifies a sent message by (destination, message identity); a single probe
+    // instance is reused to look up incoming link ACKs without allocating
+    private static final class AckKey {
+        private short dest;
+        private short source;
+        private int agreementId;
+        private int propNum;
+        private NetMessage.PayLoadKind kind;
+
+        AckKey set(NetMessage.NetCarrier c) {
+            NetMessage m = c.getMessage();
+            return set(c.getDest(), m.getSourceId(), m.getAgreementId(), m.getActivePropNumber(), m.getPayloadType());
+        }
+
+        // an ACK comes back from the destination of the message it acknowledges
+        AckKey set(MessageView ack) {
+            return set(ack.getSenderId(), ack.getSourceId(), ack.getAgreementId(), ack.getActivePropNumber(),
+                    ack.getPayloadType());
+        }
+
+        private AckKey set(short d, short s, int ag, int pn, NetMessage.PayLoadKind k) {
+            this.dest = d;
+            this.source = s;
+            this.agreementId = ag;
+            this.propNum = pn;
+            this.kind = k;
+            return this;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * NetMessage.identityHash(source, agreementId, propNum, kind) + dest;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof AckKey)) return false;
+            AckKey other = (AckKey) obj;
+            return dest == other.dest && source == other.source && agreementId == other.agreementId
+                    && propNum == other.propNum && kind == other.kind;
+        }
     }
 
     @Override
     public ChannelState snapshotChannel() {
-        return new ChannelState(socket, ackedSet, pendingSends);
+        return new ChannelState(this);
     }
 }
@@ -1,54 +1,185 @@
 package cs451;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.atomic.AtomicReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
+/**
+ * Append-only output file behind two direct buffers. Producers fill the active buffer while the
+ * writer, a stage on the StageExecutor, commits the other one, swapping them once REC_COMMIT_BYTES
+ * are buffered or TIME_BEFORE_FLUSH has passed. A producer that finds no room waits for the writer,
+ * which bounds the heap used by output. A record never straddles a commit: one larger than a whole
+ * buffer is written straight to the file once everything added before it is out.
+ * flushAndClose() writes out everything from the calling thread.
+ */
 public class RecordKeeper {
-    private final AtomicReference<StringBuilder> logs;
-    private AtomicLong lastFlush;
-    private final String outFile;
+    private final FileChannel channel;
+    private final Metrics.Histogram commitLatency = Metrics.global().histogram("output.commit_us");
+    private final Metrics.Counter committedBytes = Metrics.global().counter("output.bytes");
+
+    // guarded by this
+    private ByteBuffer active;
+    private ByteBuffer spare;
+    private boolean writing = false;
+    private boolean commitRequested = false;
+    private boolean closed = false;
+    private long lastCommit;
 
     public RecordKeeper(String output) {
-        this.logs = new AtomicReference<>(new StringBuilder(""));
-        this.lastFlush = new AtomicLong(System.currentTimeMillis());
-        this.outFile = output;
         System.out.println("Preparing output file...");
+        FileChannel ch = null;
         try {
-            BufferedWriter bw = new BufferedWriter(new FileWriter(output));
-            bw.append("");
-            bw.flush();
-            bw.close();
+            ch = FileChannel.open(Paths.get(output), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
         } catch (IOException e) {
             e.printStackTrace();
             System.err.println("Failed to initialize output");
         }
+        this.channel = ch;
+        this.active = ByteBuffer.allocateDirect(GlobalParams.REC_BUFFER_BYTES);
+        this.spare = ByteBuffer.allocateDirect(GlobalParams.REC_BUFFER_BYTES);
+        this.lastCommit = System.currentTimeMillis();
+        StageExecutor.global().start("Output Writer", this::writeLoop);
+    }
+
+    public void addLog(String s) throws InterruptedException {
+        byte[] bytes = s.getBytes(StandardCharsets.US_ASCII);
+        addLog(bytes, 0, bytes.length);
     }
 
-    public synchronized void addLog(String s) {
-        synchronized (logs) {
-            logs.getAndUpdate(sb -> sb.append(s));
+    public synchronized void addLog(byte[] src, int offset, int length) throws InterruptedException {
+        if (length <= active.capacity()) {
+            while (!closed && active.remaining() < length) {
+                awaitRoom();
+            }
+            put(src, offset, length);
+            return;
+        }
+        // larger than a buffer: written in one go under the lock, so neither the writer nor
+        // flushAndClose() can get between its pieces
+        while (!closed && writing) {
+            wait();
         }
+        if (closed) {
+            return;
+        }
+        commit(active);
+        write(ByteBuffer.wrap(src, offset, length));
+        notifyAll(); // producers waiting for room
     }
 
-    public synchronized void attemptFlush(boolean force) {
-        synchronized (logs) {
-            if ((System.currentTimeMillis() - lastFlush.get()) > GlobalParams.TIME_BEFORE_FLUSH || force) {
-                System.out.println("Flushing output...");
+    // Writes out everything added so far and closes the file; later records are dropped
+    public void flushAndClose() {
+        boolean interrupted = false;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+            while (writing) {
                 try {
-                    BufferedWriter bw = new BufferedWriter(new FileWriter(outFile, true));
-                    bw.append(logs.getAndUpdate(str -> new StringBuilder("")));
-                    bw.flush();
-                    bw.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    System.err.println("Flush failed");
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            System.out.println("Flushing output...");
+            commit(active);
+            try {
+                if (channel != null) {
+                    channel.force(false);
+                    channel.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("Flush failed");
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void put(byte[] src, int offset, int length) {
+        if (closed) {
+            return;
+        }
+        boolean wasEmpty = active.position() == 0;
+        active.put(src, offset, length);
+        if (wasEmpty || active.position() >= GlobalParams.REC_COMMIT_BYTES) {
+            notifyAll(); // the writer sleeps without a deadline while there is nothing to write
+        }
+    }
+
+    private void awaitRoom() throws InterruptedException {
+        commitRequested = true;
+        notifyAll();
+        wait();
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                ByteBuffer toWrite;
+                synchronized (this) {
+                    long wait;
+                    while (!closed && (wait = untilCommit()) > 0) {
+                        wait(active.position() == 0 ? 0 : wait);
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    toWrite = active;
+                    active = spare;
+                    spare = toWrite;
+                    writing = true;
+                    commitRequested = false;
+                    lastCommit = System.currentTimeMillis();
+                    notifyAll(); // producers waiting for room
+                }
+                commit(toWrite);
+                synchronized (this) {
+                    writing = false;
+                    notifyAll();
                 }
-                lastFlush.set(System.currentTimeMillis());
-                System.gc();
             }
+        } catch (InterruptedException e) {
+            System.err.println("Output writer interrupted");
+        }
+    }
+
+    // ms until the active buffer is due, 0 if it is due now
+    private long untilCommit() {
+        if (active.position() == 0) {
+            return Long.MAX_VALUE;
+        }
+        if (commitRequested || active.position() >= GlobalParams.REC_COMMIT_BYTES) {
+            return 0;
+        }
+        return Long.max(0, lastCommit + GlobalParams.TIME_BEFORE_FLUSH - System.currentTimeMillis());
+    }
+
+    private void commit(ByteBuffer buf) {
+        buf.flip();
+        write(buf);
+        buf.clear();
+    }
+
+    private void write(ByteBuffer buf) {
+        long start = System.nanoTime();
+        committedBytes.add(buf.remaining());
+        try {
+            while (channel != null && buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Flush failed");
         }
+        commitLatency.record((System.nanoTime() - start) / 1000);
     }
 }
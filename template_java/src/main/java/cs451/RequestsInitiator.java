@@ -1,36 +1,45 @@
 package cs451;
 
-import java.net.SocketException;
-import java.net.UnknownHostException;
-import java.util.List;
+import java.io.IOException;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Future;
 
 public class RequestsInitiator implements Runnable, SharedInterfaces.ChannelSnapshot, SharedInterfaces.ConsensusSnapshot {
     private final ConfigurationFileReader.NestedConfig confData;
     private final LatticeAgreement topLevelAgreement;
 
     public RequestsInitiator(short myId, Map<Short, NodeAddress> mapHosts, ConfigurationFileReader cfg)
-            throws SocketException, UnknownHostException {
+            throws IOException {
         this.confData = cfg.obtainNestedConfig();
         this.topLevelAgreement = new LatticeAgreement(myId, mapHosts, confData);
     }
 
     @Override
     public void run() {
-        Thread consensusSender = new Thread(topLevelAgreement, "Consensus Sender");
-        consensusSender.start();
+        Future<?> consensusSender = StageExecutor.global().start("Consensus Sender", topLevelAgreement);
         try {
-            List<Set<Integer>> proposals = confData.getProposals();
-            for (int i = 0; i < proposals.size(); ++i) {
-                Set<Integer> prop = proposals.get(i);
-                while (!topLevelAgreement.submitProposal(i, prop)) {
-                    Thread.sleep(GlobalParams.SLEEP_BEFORE_NEXT_POLL);
+            AgreementWindow window = topLevelAgreement.snapshotConsensus().getWindow();
+            // a proposal is parsed only once the window is about to take it
+            try (ConfigurationFileReader.ProposalStream proposals = confData.openProposals()) {
+                for (int i = 0; proposals.hasNext(); ++i) {
+                    IntSet prop = proposals.next();
+                    long ticket = window.roomTicket();
+                    while (!topLevelAgreement.submitProposal(i, prop)) {
+                        window.awaitRoom(ticket);
+                        ticket = window.roomTicket();
+                    }
                 }
             }
+        } catch (IOException e) {
+            System.err.println("I/O error while reading proposals");
+            e.printStackTrace();
+        } catch (IllegalArgumentException e) {
+            // the proposals do not match the header: nothing more will be proposed
+            System.err.println("Invalid proposals in config");
+            e.printStackTrace();
         } catch (InterruptedException e) {
             System.err.println("RequestsInitiator interrupted");
-            consensusSender.interrupt();
+            consensusSender.cancel(true);
         }
     }
 
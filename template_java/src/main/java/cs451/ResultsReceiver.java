@@ -3,16 +3,21 @@ package cs451;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.util.*;
-import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
 
-public class ResultsReceiver implements Runnable, SharedInterfaces.MsgReception {
+public class ResultsReceiver implements Runnable, SharedInterfaces.MsgReception, SharedInterfaces.DecisionSink {
 
     private final RecordKeeper rec;
     private final ConfigurationFileReader.NestedConfig nestCfg;
-    private final ConcurrentSkipListMap<Integer, Set<Integer>> deliverables = new ConcurrentSkipListMap<>();
+    // guarded by this: decisions not written yet, and the next one the output expects
+    private final HashMap<Integer, IntSet> deliverables = new HashMap<>();
+    private int nextDeliverIndex = 0;
     private final LatticeAgreement consensusModule;
-    private final AtomicInteger nextDeliverIndex = new AtomicInteger(0);
+    // delivery thread only: lines formatted since the last hand-off to the RecordKeeper
+    private byte[] lines = new byte[4096];
+    private int linesLen = 0;
+    private final IntConsumer appendValue = this::appendValue;
 
     public ResultsReceiver(RecordKeeper logger, short id, Map<Short, NodeAddress> hostsMap,
                            ConfigurationFileReader cfgReader, ChannelState plSt,
@@ -29,37 +34,88 @@ public class ResultsReceiver implements Runnable, SharedInterfaces.MsgReception
         this.consensusModule = null;
     }
 
-    public void deliver(int agreementId, Set<Integer> values) {
+    @Override
+    public synchronized void deliver(int agreementId, IntSet values) {
         if (values == null) {
             throw new IllegalArgumentException("Null delivery");
         }
-        deliverables.put(agreementId, Collections.unmodifiableSet(values));
+        deliverables.put(agreementId, values);
+        if (agreementId == nextDeliverIndex) {
+            notify();
+        }
     }
 
     @Override
     public void run() {
-        Thread latticeThread = new Thread(consensusModule, "Consensus Receiver");
-        latticeThread.start();
+        Future<?> latticeStage = StageExecutor.global().start("Consensus Receiver", consensusModule);
         try {
             while (!Thread.currentThread().isInterrupted()) {
-                int idx = nextDeliverIndex.get();
-                if (deliverables.containsKey(idx)) {
-                    StringBuilder sb = new StringBuilder();
-                    for (int v : deliverables.get(idx)) {
-                        sb.append(v).append(" ");
+                // sleep until the next decision arrives, then take every one that follows it
+                IntSet next = takeNext(true);
+                while (next != null) {
+                    appendLine(next);
+                    if (linesLen >= GlobalParams.REC_COMMIT_BYTES) {
+                        handOff();
                     }
-                    sb.append("\n");
-                    rec.addLog(sb.toString());
-                    nextDeliverIndex.incrementAndGet();
-                    deliverables.remove(idx);
-                } else {
-                    Thread.sleep(GlobalParams.SLEEP_BEFORE_NEXT_POLL);
+                    next = takeNext(false);
                 }
-                rec.attemptFlush(false);
+                handOff();
             }
         } catch (InterruptedException e) {
             System.err.println("ResultsReceiver interrupted");
-            latticeThread.interrupt();
+            latticeStage.cancel(true);
+        }
+    }
+
+    private synchronized IntSet takeNext(boolean block) throws InterruptedException {
+        IntSet next;
+        while ((next = deliverables.remove(nextDeliverIndex)) == null) {
+            if (!block) {
+                return null;
+            }
+            wait();
+        }
+        nextDeliverIndex++;
+        return next;
+    }
+
+    private void appendLine(IntSet values) {
+        values.forEach(appendValue);
+        ensureRoom(1);
+        lines[linesLen++] = '\n';
+    }
+
+    // Writes v and a separating space as ASCII digits straight into the line buffer
+    private void appendValue(int v) {
+        ensureRoom(12);
+        long n = v;
+        if (n < 0) {
+            lines[linesLen++] = '-';
+            n = -n;
+        }
+        int start = linesLen;
+        do {
+            lines[linesLen++] = (byte) ('0' + n % 10);
+            n /= 10;
+        } while (n != 0);
+        for (int i = start, j = linesLen - 1; i < j; i++, j--) {
+            byte t = lines[i];
+            lines[i] = lines[j];
+            lines[j] = t;
+        }
+        lines[linesLen++] = ' ';
+    }
+
+    private void ensureRoom(int bytes) {
+        if (linesLen + bytes > lines.length) {
+            lines = Arrays.copyOf(lines, Integer.max(lines.length * 2, linesLen + bytes));
+        }
+    }
+
+    private void handOff() throws InterruptedException {
+        if (linesLen > 0) {
+            rec.addLog(lines, 0, linesLen);
+            linesLen = 0;
         }
     }
 
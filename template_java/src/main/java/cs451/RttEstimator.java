@@ -0,0 +1,61 @@
+package cs451;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Jacobson/Karels round-trip estimator for one peer. Only messages that were never retransmitted
+ * are sampled (Karn's rule); timeouts back the RTO off exponentially up to PL_MAX_RTO and the next
+ * valid sample brings it back to srtt + 4 * rttvar. All values are in nanoseconds.
+ */
+public class RttEstimator {
+    private static final long MIN_RTO = TimeUnit.MILLISECONDS.toNanos(GlobalParams.PL_MIN_RTO);
+    private static final long MAX_RTO = TimeUnit.MILLISECONDS.toNanos(GlobalParams.PL_MAX_RTO);
+    private static final long GRANULARITY = TimeUnit.MICROSECONDS.toNanos(GlobalParams.PL_TIMER_TICK_MICROS);
+
+    private long srtt = -1;
+    private long rttvar;
+    private long rto = TimeUnit.MILLISECONDS.toNanos(GlobalParams.PL_TIMEOUT_BEFORE_RESEND);
+    private long lastBackoff = Long.MIN_VALUE;
+
+    public void sample(NetMessage.NetCarrier acked, long now) {
+        if (acked.getRetransmissions() > 0) {
+            return; // ambiguous: the ACK may answer any of the copies
+        }
+        long r = Long.max(now - acked.getTimeOfSending(), 0);
+        if (srtt < 0) {
+            srtt = r;
+            rttvar = r / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - r)) / 4;
+            srtt = (7 * srtt + r) / 8;
+        }
+        rto = clamp(srtt + Long.max(GRANULARITY, 4 * rttvar));
+    }
+
+    // One backoff per RTO period, however many messages time out in it; returns whether it backed off
+    public boolean backoff(long now) {
+        if (lastBackoff == Long.MIN_VALUE || now - lastBackoff >= rto) {
+            rto = clamp(rto * 2);
+            lastBackoff = now;
+            return true;
+        }
+        return false;
+    }
+
+    public long currentRto() {
+        return rto;
+    }
+
+    public long smoothedRtt() {
+        return srtt;
+    }
+
+    private static long clamp(long v) {
+        return Long.min(MAX_RTO, Long.max(MIN_RTO, v));
+    }
+
+    @Override
+    public String toString() {
+        return "RttEstimator [srtt=" + srtt + ", rttvar=" + rttvar + ", rto=" + rto + "]";
+    }
+}
@@ -0,0 +1,142 @@
+package cs451;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The outbound queues of one peer, one per lane, served by weighted round robin. CONTROL carries
+ * lattice ACK/NACK replies, which other proposers are waiting on; PROPOSAL carries fresh
+ * proposals; RETRANSMIT carries what timed out. Link ACKs and SACKs never queue here: the link
+ * stages them from their own buffers ahead of every lane. Within a round a lane sends up to its
+ * weight, higher lanes first, and a new round starts once every lane that could send spent its
+ * share, so a backlog in a low lane never holds up a high one for more than its weight, nor does
+ * it starve. Fresh proposals also need room in the peer's congestion window; replies and
+ * retransmissions never do: a reply unblocks an agreement of another process and there are only as
+ * many as proposals came in, so it must not wait behind our own proposals for window room.
+ * offer(), freshQueued() and depth() may be called from any thread, the rest only from the link's
+ * event loop.
+ */
+public class SendLanes {
+    public enum Lane {
+        CONTROL(GlobalParams.PL_LANE_WEIGHT_CONTROL),
+        PROPOSAL(GlobalParams.PL_LANE_WEIGHT_PROPOSAL),
+        RETRANSMIT(GlobalParams.PL_LANE_WEIGHT_RETRANSMIT);
+
+        public static final Lane[] vals = values();
+
+        private final int weight;
+
+        Lane(int weight) {
+            if (weight <= 0) {
+                throw new IllegalArgumentException("Lane weights must be positive");
+            }
+            this.weight = weight;
+        }
+    }
+
+    private final ConcurrentLinkedQueue<NetMessage.NetCarrier> replies = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<NetMessage.NetCarrier> proposals = new ConcurrentLinkedQueue<>();
+    private final ArrayDeque<NetMessage.NetCarrier> retransmits = new ArrayDeque<>();
+    private final AtomicInteger[] depth = new AtomicInteger[Lane.vals.length];
+    private final AtomicInteger fresh = new AtomicInteger(0);
+    private final int[] credit = new int[Lane.vals.length];
+
+    public SendLanes() {
+        for (Lane lane : Lane.vals) {
+            depth[lane.ordinal()] = new AtomicInteger(0);
+        }
+        refill();
+    }
+
+    // Fresh messages from the layers above; callers bound the queue through freshQueued()
+    public boolean offer(NetMessage.NetCarrier c) {
+        fresh.incrementAndGet();
+        if (c.getMessage().isReply()) {
+            depth[Lane.CONTROL.ordinal()].incrementAndGet();
+            return replies.add(c);
+        }
+        depth[Lane.PROPOSAL.ordinal()].incrementAndGet();
+        return proposals.add(c);
+    }
+
+    public void offerRetransmit(NetMessage.NetCarrier c) {
+        depth[Lane.RETRANSMIT.ordinal()].incrementAndGet();
+        retransmits.add(c);
+    }
+
+    public int freshQueued() {
+        return fresh.get();
+    }
+
+    public int depth(Lane lane) {
+        return depth[lane.ordinal()].get();
+    }
+
+    public boolean hasSendable(boolean windowOpen) {
+        for (Lane lane : Lane.vals) {
+            if (ready(lane, windowOpen)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The next carrier by lane priority and weight, null if no lane can send
+    public NetMessage.NetCarrier take(boolean windowOpen) {
+        for (int round = 0; round < 2; round++) {
+            for (Lane lane : Lane.vals) {
+                if (credit[lane.ordinal()] > 0 && ready(lane, windowOpen)) {
+                    credit[lane.ordinal()]--;
+                    return poll(lane);
+                }
+            }
+            // whichever lane could send has spent its share: start the next round
+            refill();
+        }
+        return null;
+    }
+
+    private boolean ready(Lane lane, boolean windowOpen) {
+        switch (lane) {
+            case CONTROL:
+                return !replies.isEmpty();
+            case PROPOSAL:
+                return windowOpen && !proposals.isEmpty();
+            default:
+                while (!retransmits.isEmpty() && retransmits.peek().isAcked()) {
+                    // acknowledged while waiting for its retransmission
+                    retransmits.poll();
+                    depth[Lane.RETRANSMIT.ordinal()].decrementAndGet();
+                }
+                return !retransmits.isEmpty();
+        }
+    }
+
+    private NetMessage.NetCarrier poll(Lane lane) {
+        NetMessage.NetCarrier c;
+        if (lane == Lane.CONTROL) {
+            c = replies.poll();
+            fresh.decrementAndGet();
+        } else if (lane == Lane.PROPOSAL) {
+            c = proposals.poll();
+            fresh.decrementAndGet();
+        } else {
+            c = retransmits.poll();
+        }
+        depth[lane.ordinal()].decrementAndGet();
+        return c;
+    }
+
+    private void refill() {
+        for (Lane lane : Lane.vals) {
+            credit[lane.ordinal()] = lane.weight;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SendLanes [control=" + depth(Lane.CONTROL) + ", proposal=" + depth(Lane.PROPOSAL)
+                + ", retransmit=" + depth(Lane.RETRANSMIT) + "]";
+    }
+}
@@ -0,0 +1,263 @@
+package cs451;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Link state for the sequenced mode of PerfectLinks: every sender->receiver pair numbers its
+ * messages, receivers answer with one cumulative ACK plus a SACK bitmap on a delayed-ACK timer.
+ * Frames are [seq: int][message bytes], or [SACK_SEQ][sender: short][cumAck: int][words: byte][bitmap: long*words].
+ */
+public class SequenceWindows {
+    public static final int NO_SEQ = -1;
+    public static final int SACK_SEQ = -2;
+    public static final int SEQ_HEADER_SIZE = Integer.BYTES;
+    private static final int SACK_FIXED_SIZE = Integer.BYTES + Short.BYTES + Integer.BYTES + Byte.BYTES;
+    // Largest SACK frame: the bitmap covers at most the whole receive window
+    public static final int MAX_SACK_SIZE = SACK_FIXED_SIZE + GlobalParams.PL_SEQ_WINDOW / Byte.SIZE;
+    private static final long DELAYED_ACK_NANOS = TimeUnit.MILLISECONDS.toNanos(GlobalParams.PL_DELAYED_ACK);
+
+    private final short selfId;
+    // by peer id, looked up for every received frame
+    private final PeerWindow[] byId;
+    private final List<PeerWindow> peers;
+
+    public SequenceWindows(short myId, Collection<Short> peerIds) {
+        this.selfId = myId;
+        int maxId = 0;
+        for (short id : peerIds) {
+            if (id < 0) {
+                throw new IllegalArgumentException("Negative peer id " + id);
+            }
+            maxId = Integer.max(maxId, id);
+        }
+        this.byId = new PeerWindow[maxId + 1];
+        List<PeerWindow> all = new ArrayList<>(peerIds.size());
+        for (short id : peerIds) {
+            byId[id] = new PeerWindow(id);
+            all.add(byId[id]);
+        }
+        this.peers = Collections.unmodifiableList(all);
+    }
+
+    public PeerWindow peer(short id) {
+        PeerWindow pw = id >= 0 && id < byId.length ? byId[id] : null;
+        if (pw == null) {
+            throw new IllegalArgumentException("Unknown peer " + id);
+        }
+        return pw;
+    }
+
+    public List<PeerWindow> allPeers() {
+        return peers;
+    }
+
+    // Earliest delayed-ACK deadline over all peers, Long.MAX_VALUE if no ACK is owed
+    public long nextSackDeadline() {
+        long deadline = Long.MAX_VALUE;
+        for (PeerWindow pw : peers) {
+            deadline = Long.min(deadline, pw.sackDeadline());
+        }
+        return deadline;
+    }
+
+    // Receives what readDatagram finds; implemented once per reader so no lambda is allocated per datagram
+    public interface DatagramSink {
+        // a SACK frame: buff is positioned right after its SACK_SEQ marker, the frame ends at end
+        void sack(ByteBuffer buff, int end, long now);
+
+        void fresh(MessageView msg);
+
+        // a message that was delivered before arrived again
+        void duplicate();
+    }
+
+    // Receives the carriers a SACK releases; send-side state, so only the link's event loop applies SACKs
+    public interface AckSink {
+        void acked(NetMessage.NetCarrier carrier, long now);
+    }
+
+    // Unpacks one datagram in place: passes its SACKs on and hands every message seen for the
+    // first time to the sink through the reusable view, which is only valid during that call.
+    // Receive windows are locked per peer, so several readers may share them
+    public void readDatagram(ByteBuffer buff, long now, MessageView view, DatagramSink sink) {
+        int length = buff.limit();
+        int count = DatagramBatch.countOf(buff);
+        buff.position(NetMessage.BATCH_HEADER_SIZE);
+        for (int i = 0; i < count; i++) {
+            int frameLen = buff.getShort() & 0xFFFF;
+            int next = buff.position() + frameLen;
+            if (next > length || frameLen < SEQ_HEADER_SIZE) {
+                throw new IllegalStateException("Deserialization error: truncated batch");
+            }
+            int seq = buff.getInt();
+            if (seq == SACK_SEQ) {
+                sink.sack(buff, next, now);
+            } else {
+                view.wrap(buff, buff.position(), frameLen - SEQ_HEADER_SIZE);
+                if (peer(view.getSenderId()).accept(seq, now)) {
+                    sink.fresh(view);
+                } else {
+                    sink.duplicate();
+                }
+            }
+            buff.position(next);
+        }
+    }
+
+    // Applies a SACK frame read from buff's position up to end
+    public void applySack(ByteBuffer buff, int end, long now, AckSink sink) {
+        short from = buff.getShort();
+        int cumAck = buff.getInt();
+        int words = buff.get();
+        if (buff.position() + Long.BYTES * words > end) {
+            throw new IllegalStateException("Deserialization error: truncated SACK");
+        }
+        peer(from).acknowledge(cumAck, buff, buff.position(), words, now, sink);
+    }
+
+    public class PeerWindow {
+        private final short peerId;
+        // send side: carriers in [sendBase, nextSeq) that are not yet acknowledged
+        private final NetMessage.NetCarrier[] unacked = new NetMessage.NetCarrier[GlobalParams.PL_SEQ_WINDOW];
+        private int sendBase = 0;
+        private int nextSeq = 0;
+        // receive side: every seq below recvBase was delivered, bits mark deliveries above it
+        private final long[] received = new long[GlobalParams.PL_SEQ_WINDOW / Long.SIZE];
+        private int recvBase = 0;
+        private int highestReceived = -1;
+        private int ackOwed = 0;
+        private long ackOwedSince;
+
+        private PeerWindow(short id) {
+            this.peerId = id;
+        }
+
+        public short getId() {
+            return peerId;
+        }
+
+        // Assigns the next sequence number, or returns null while the send window is full
+        public synchronized NetMessage.NetCarrier enqueue(NetMessage msg) {
+            if (nextSeq - sendBase >= GlobalParams.PL_SEQ_WINDOW) {
+                return null;
+            }
+            NetMessage.NetCarrier c = msg.toSend(peerId, nextSeq);
+            unacked[slot(nextSeq)] = c;
+            nextSeq++;
+            return c;
+        }
+
+        public synchronized int inFlight() {
+            return nextSeq - sendBase;
+        }
+
+        // The SACK bitmap is read straight from the datagram: words longs starting at bitmapAt
+        private synchronized void acknowledge(int cumAck, ByteBuffer buff, int bitmapAt, int words, long now,
+                                              AckSink sink) {
+            int upTo = Integer.min(cumAck, nextSeq);
+            for (int s = sendBase; s < upTo; s++) {
+                release(s, now, sink);
+            }
+            sendBase = Integer.max(sendBase, upTo);
+            for (int w = 0; w < words; w++) {
+                long bits = buff.getLong(bitmapAt + w * Long.BYTES);
+                while (bits != 0) {
+                    int s = cumAck + 1 + w * Long.SIZE + Long.numberOfTrailingZeros(bits);
+                    if (s >= sendBase && s < nextSeq) {
+                        release(s, now, sink);
+                    }
+                    bits &= bits - 1;
+                }
+            }
+            while (sendBase < nextSeq && unacked[slot(sendBase)] == null) {
+                sendBase++;
+            }
+        }
+
+        private void release(int seq, long now, AckSink sink) {
+            NetMessage.NetCarrier c = unacked[slot(seq)];
+            if (c != null) {
+                unacked[slot(seq)] = null;
+                sink.acked(c, now);
+            }
+        }
+
+        private synchronized boolean accept(int seq, long now) {
+            if (ackOwed == 0) {
+                ackOwedSince = now;
+            }
+            ackOwed++;
+            if (seq < recvBase || seq >= recvBase + GlobalParams.PL_SEQ_WINDOW || isReceived(seq)) {
+                // duplicate, or beyond what we can track: re-ACK so the sender learns our state
+                return false;
+            }
+            received[bitWord(seq)] |= bitMask(seq);
+            highestReceived = Integer.max(highestReceived, seq);
+            while (isReceived(recvBase)) {
+                received[bitWord(recvBase)] &= ~bitMask(recvBase);
+                recvBase++;
+            }
+            return true;
+        }
+
+        private boolean isReceived(int seq) {
+            return seq >= recvBase && seq < recvBase + GlobalParams.PL_SEQ_WINDOW
+                    && (received[bitWord(seq)] & bitMask(seq)) != 0;
+        }
+
+        public synchronized boolean hasPendingAck() {
+            return ackOwed > 0;
+        }
+
+        public synchronized long sackDeadline() {
+            return ackOwed > 0 ? ackOwedSince + DELAYED_ACK_NANOS : Long.MAX_VALUE;
+        }
+
+        public synchronized boolean sackDue(long now) {
+            return ackOwed >= GlobalParams.PL_SACK_EVERY
+                    || (ackOwed > 0 && now - ackOwedSince >= DELAYED_ACK_NANOS);
+        }
+
+        // Writes the SACK frame at the start of out (MAX_SACK_SIZE bytes suffice), returns its length
+        public synchronized int buildSack(ByteBuffer out) {
+            int span = Integer.max(0, highestReceived - recvBase);
+            int words = (span + Long.SIZE - 1) / Long.SIZE;
+            ByteBuffer buff = out.clear();
+            buff.putInt(SACK_SEQ).putShort(selfId).putInt(recvBase).put((byte) words);
+            for (int w = 0; w < words; w++) {
+                long bits = 0L;
+                for (int b = 0; b < Long.SIZE; b++) {
+                    if (isReceived(recvBase + 1 + w * Long.SIZE + b)) {
+                        bits |= 1L << b;
+                    }
+                }
+                buff.putLong(bits);
+            }
+            ackOwed = 0;
+            return buff.position();
+        }
+
+        private int slot(int seq) {
+            return seq % GlobalParams.PL_SEQ_WINDOW;
+        }
+
+        private int bitWord(int seq) {
+            return slot(seq) / Long.SIZE;
+        }
+
+        private long bitMask(int seq) {
+            return 1L << (slot(seq) % Long.SIZE);
+        }
+
+        @Override
+        public String toString() {
+            return "PeerWindow [peer=" + peerId + ", sendBase=" + sendBase + ", nextSeq=" + nextSeq
+                    + ", recvBase=" + recvBase + "]";
+        }
+    }
+}
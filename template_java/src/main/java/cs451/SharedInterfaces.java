@@ -1,5 +1,7 @@
 package cs451;
 
+import java.util.BitSet;
+
 public interface SharedInterfaces {
 
     // Replaces Deliverable
@@ -8,6 +10,32 @@ public interface SharedInterfaces {
         void receiveDeliveredMessage(NetMessage m);
     }
 
+    // What the lattice layer needs from a link; PerfectLinks in production
+    interface MsgTransport {
+        // queues m for dest, false if dest's queue is full and the caller should retry later
+        boolean scheduleToSend(NetMessage m, short dest);
+
+        // queues m for every node set in dests and clears those that took it; true once none is left
+        default boolean broadcast(NetMessage m, BitSet dests) {
+            for (int d = dests.nextSetBit(0); d >= 0; d = dests.nextSetBit(d + 1)) {
+                if (scheduleToSend(m, (short) d)) {
+                    dests.clear(d);
+                }
+            }
+            return dests.isEmpty();
+        }
+    }
+
+    // Monotonic nanoseconds: System::nanoTime, or the simulator's virtual clock
+    interface Clock {
+        long nanoTime();
+    }
+
+    // Receives decisions in agreement order
+    interface DecisionSink {
+        void deliver(int agreementId, IntSet values);
+    }
+
     // Replaces LatticeStateGiver
     interface ConsensusSnapshot {
         ConsensusData.ConsensusStage snapshotConsensus();
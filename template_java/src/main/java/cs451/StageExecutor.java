@@ -0,0 +1,116 @@
+package cs451;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the long-lived stages of a process (proposal reader, output writer loop, link event loop,
+ * lattice workers...) as tasks on one executor chosen by GlobalParams.EXEC_MODE: a platform thread
+ * per stage, a shared bounded pool, or a virtual thread per stage. Virtual threads are looked up
+ * reflectively, so the code still builds for release 11 and falls back to platform threads on
+ * JDKs without them. A stage is stopped by cancelling its Future, which interrupts it.
+ */
+public final class StageExecutor {
+    public enum Mode {
+        PLATFORM, POOL, VIRTUAL;
+
+        static Mode parse(String name) {
+            try {
+                return valueOf(name.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown executor mode " + name, e);
+            }
+        }
+    }
+
+    private static final StageExecutor GLOBAL = new StageExecutor(Mode.parse(GlobalParams.EXEC_MODE),
+            GlobalParams.EXEC_POOL_THREADS);
+
+    private final Mode mode;
+    private final ExecutorService executor;
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    public StageExecutor(Mode requested, int poolThreads) {
+        if (poolThreads <= 0) {
+            throw new IllegalArgumentException("Pool needs at least one thread");
+        }
+        ExecutorService virtual = requested == Mode.VIRTUAL ? virtualExecutor() : null;
+        if (virtual != null) {
+            this.mode = Mode.VIRTUAL;
+            this.executor = virtual;
+        } else if (requested == Mode.POOL) {
+            this.mode = Mode.POOL;
+            // stages hold their thread for the whole run: when the pool is exhausted a new stage
+            // is refused right away instead of queueing behind stages that never finish
+            this.executor = new ThreadPoolExecutor(poolThreads, poolThreads, 0L, TimeUnit.MILLISECONDS,
+                    new SynchronousQueue<>(), this::newThread);
+        } else {
+            this.mode = Mode.PLATFORM;
+            this.executor = Executors.newCachedThreadPool(this::newThread);
+        }
+    }
+
+    public static StageExecutor global() {
+        return GLOBAL;
+    }
+
+    public Mode mode() {
+        return mode;
+    }
+
+    // Starts the stage under the given name, which its thread carries while it runs
+    public Future<?> start(String name, Runnable stage) {
+        try {
+            return executor.submit(() -> {
+                Thread self = Thread.currentThread();
+                String previous = self.getName();
+                self.setName(name);
+                try {
+                    stage.run();
+                } catch (RuntimeException | Error e) {
+                    // nobody may ever look at the Future, so report it like an uncaught exception
+                    System.err.println("Stage " + name + " failed");
+                    e.printStackTrace();
+                    throw e;
+                } finally {
+                    self.setName(previous);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            throw new IllegalStateException("No thread left for stage " + name + " in " + this, e);
+        }
+    }
+
+    // Interrupts every running stage
+    public void shutdownNow() {
+        executor.shutdownNow();
+    }
+
+    private Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "Stage " + threadCount.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    }
+
+    private static ExecutorService virtualExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            System.err.println("Virtual threads unavailable on this JDK, using platform threads");
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StageExecutor [mode=" + mode + ", executor=" + executor + "]";
+    }
+}
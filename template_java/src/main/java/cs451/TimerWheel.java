@@ -0,0 +1,125 @@
+package cs451;
+
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel with O(1) schedule and cancel. Timeouts are intrusive doubly linked
+ * nodes, so whoever holds one (e.g. an acknowledged NetCarrier) can cancel it directly.
+ * Not thread-safe: meant to be driven by the PerfectLinks event loop only. Times are System.nanoTime().
+ */
+public class TimerWheel {
+
+    public abstract static class Timeout {
+        private TimerWheel owner;
+        private Timeout prev;
+        private Timeout next;
+        private int bucket;
+        private long deadline;
+
+        public boolean isScheduled() {
+            return owner != null;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        public void cancel() {
+            if (owner != null) {
+                owner.unlink(this);
+            }
+        }
+    }
+
+    private final Timeout[] buckets;
+    private final int mask;
+    private final long tickNanos;
+    private long processedTick;
+    private int size;
+
+    public TimerWheel(int slots, long tickNanos, long startNanos) {
+        if (Integer.bitCount(slots) != 1 || tickNanos <= 0) {
+            throw new IllegalArgumentException("TimerWheel needs a power-of-two slot count and positive tick");
+        }
+        this.buckets = new Timeout[slots];
+        this.mask = slots - 1;
+        this.tickNanos = tickNanos;
+        this.processedTick = Math.floorDiv(startNanos, tickNanos);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void schedule(Timeout t, long deadlineNanos) {
+        t.cancel();
+        t.deadline = deadlineNanos;
+        // never hash into a tick that was already processed
+        long tick = Long.max(Math.floorDiv(deadlineNanos, tickNanos), processedTick + 1);
+        int idx = (int) (tick & mask);
+        t.owner = this;
+        t.bucket = idx;
+        t.prev = null;
+        t.next = buckets[idx];
+        if (t.next != null) {
+            t.next.prev = t;
+        }
+        buckets[idx] = t;
+        size++;
+    }
+
+    // Fires every timeout whose deadline passed, returns how many fired
+    public int expire(long nowNanos, Consumer<Timeout> onExpire) {
+        long nowTick = Math.floorDiv(nowNanos, tickNanos);
+        long from = Long.max(processedTick + 1, nowTick - mask);
+        int fired = 0;
+        for (long tick = from; tick <= nowTick && size > 0; tick++) {
+            Timeout t = buckets[(int) (tick & mask)];
+            while (t != null) {
+                Timeout next = t.next;
+                if (t.deadline - nowNanos <= 0) {
+                    unlink(t);
+                    onExpire.accept(t);
+                    fired++;
+                }
+                t = next;
+            }
+        }
+        // the current tick may still hold timeouts due later in it, so it is only processed once over
+        processedTick = Long.max(processedTick, nowTick - 1);
+        return fired;
+    }
+
+    // Start of the first non-empty upcoming tick, Long.MAX_VALUE when nothing is scheduled
+    public long nextExpiry() {
+        if (size == 0) {
+            return Long.MAX_VALUE;
+        }
+        for (long tick = processedTick + 1; tick <= processedTick + buckets.length; tick++) {
+            if (buckets[(int) (tick & mask)] != null) {
+                return tick * tickNanos;
+            }
+        }
+        return (processedTick + 1) * tickNanos;
+    }
+
+    private void unlink(Timeout t) {
+        if (t.prev != null) {
+            t.prev.next = t.next;
+        } else {
+            buckets[t.bucket] = t.next;
+        }
+        if (t.next != null) {
+            t.next.prev = t.prev;
+        }
+        t.owner = null;
+        t.prev = null;
+        t.next = null;
+        size--;
+    }
+
+    @Override
+    public String toString() {
+        return "TimerWheel [slots=" + buckets.length + ", tickNanos=" + tickNanos + ", size=" + size + "]";
+    }
+}
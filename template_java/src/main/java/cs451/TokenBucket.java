@@ -0,0 +1,53 @@
+package cs451;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Byte-rate pacer: sends may proceed while tokens are positive and can drive them into
+ * deficit, so messages larger than the burst still go out. Times are System.nanoTime().
+ */
+public class TokenBucket {
+    private final double bytesPerNano;
+    private final long burst;
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucket(long bytesPerSecond, long burstBytes, long now) {
+        if (bytesPerSecond <= 0 || burstBytes <= 0) {
+            throw new IllegalArgumentException("TokenBucket needs a positive rate and burst");
+        }
+        this.bytesPerNano = (double) bytesPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = burstBytes;
+        this.tokens = burstBytes;
+        this.lastRefill = now;
+    }
+
+    public boolean hasTokens(long now) {
+        refill(now);
+        return tokens > 0;
+    }
+
+    public boolean tryConsume(int bytes, long now) {
+        if (!hasTokens(now)) {
+            return false;
+        }
+        tokens -= bytes;
+        return true;
+    }
+
+    // When tokens become positive again
+    public long nextAvailable(long now) {
+        refill(now);
+        return tokens > 0 ? now : now + (long) Math.ceil((1 - tokens) / bytesPerNano);
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(burst, tokens + (now - lastRefill) * bytesPerNano);
+        lastRefill = now;
+    }
+
+    @Override
+    public String toString() {
+        return "TokenBucket [tokens=" + (long) tokens + ", burst=" + burst + "]";
+    }
+}
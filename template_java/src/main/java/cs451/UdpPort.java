@@ -0,0 +1,149 @@
+package cs451;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The production DatagramPort: a non-blocking DatagramChannel bound to this node's address,
+ * waited on through a Selector. Opened with several sockets, all of them join one SO_REUSEPORT
+ * group on that address and the kernel spreads the incoming traffic over them by sender; every
+ * socket past the first is a receive shard.
+ */
+public class UdpPort implements DatagramPort {
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final SelectionKey selKey;
+    private final InetSocketAddress[] addressById;
+    private final Map<SocketAddress, Short> idByAddress;
+    private final List<DatagramPort> shards;
+
+    public UdpPort(short myId, Map<Short, NodeAddress> hMap) throws IOException {
+        this(myId, hMap, 1);
+    }
+
+    public UdpPort(short myId, Map<Short, NodeAddress> hMap, int sockets) throws IOException {
+        NodeAddress selfHost = hMap.get(myId);
+        if (selfHost == null) {
+            throw new IllegalArgumentException("No address for host " + myId);
+        }
+        if (sockets <= 0) {
+            throw new IllegalArgumentException("UdpPort needs at least one socket");
+        }
+        int maxId = 0;
+        for (short id : hMap.keySet()) {
+            maxId = Integer.max(maxId, id);
+        }
+        this.addressById = new InetSocketAddress[maxId + 1];
+        HashMap<SocketAddress, Short> ids = new HashMap<>();
+        for (NodeAddress node : hMap.values()) {
+            addressById[node.getId()] = node.getSocketAddress();
+            ids.put(node.getSocketAddress(), node.getId());
+        }
+        this.idByAddress = Collections.unmodifiableMap(ids);
+
+        InetSocketAddress bindTo = new InetSocketAddress(InetAddress.getByName(selfHost.getIp()),
+                selfHost.getPortNumber());
+        boolean fanOut = sockets > 1;
+        if (fanOut && !reusePortSupported()) {
+            System.err.println("SO_REUSEPORT unsupported here, receiving on a single socket");
+            fanOut = false;
+        }
+        this.channel = openChannel(bindTo, fanOut);
+        this.selector = Selector.open();
+        this.selKey = this.channel.register(selector, 0);
+        List<DatagramPort> extra = new ArrayList<>();
+        for (int i = 1; fanOut && i < sockets; i++) {
+            extra.add(new UdpPort(openChannel(bindTo, true), addressById, idByAddress));
+        }
+        this.shards = Collections.unmodifiableList(extra);
+    }
+
+    // A receive shard: shares the address tables of the port it belongs to
+    private UdpPort(DatagramChannel ch, InetSocketAddress[] addresses, Map<SocketAddress, Short> ids)
+            throws IOException {
+        this.channel = ch;
+        this.selector = Selector.open();
+        this.selKey = ch.register(selector, 0);
+        this.addressById = addresses;
+        this.idByAddress = ids;
+        this.shards = Collections.emptyList();
+    }
+
+    private static boolean reusePortSupported() throws IOException {
+        try (DatagramChannel probe = DatagramChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+    }
+
+    private static DatagramChannel openChannel(InetSocketAddress bindTo, boolean reusePort) throws IOException {
+        DatagramChannel ch = DatagramChannel.open();
+        ch.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        if (reusePort) {
+            ch.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        ch.bind(bindTo);
+        ch.configureBlocking(false);
+        return ch;
+    }
+
+    @Override
+    public boolean send(ByteBuffer datagram, short dest) throws IOException {
+        return channel.send(datagram, addressById[dest]) > 0;
+    }
+
+    @Override
+    public short receive(ByteBuffer buff) throws IOException {
+        SocketAddress from = channel.receive(buff);
+        if (from == null) {
+            return -1;
+        }
+        Short id = idByAddress.get(from);
+        return id == null ? 0 : id;
+    }
+
+    @Override
+    public void await(boolean wantRead, boolean wantWrite, long deadline, long now) throws IOException {
+        selKey.interestOps((wantRead ? SelectionKey.OP_READ : 0) | (wantWrite ? SelectionKey.OP_WRITE : 0));
+        if (deadline == Long.MAX_VALUE) {
+            selector.select();
+        } else if (deadline - now <= 0) {
+            selector.selectNow();
+        } else {
+            // round up so we do not wake just before the deadline
+            selector.select(Long.max(1L, TimeUnit.NANOSECONDS.toMillis(deadline - now + 999_999L)));
+        }
+        selector.selectedKeys().clear();
+    }
+
+    @Override
+    public void wakeup() {
+        selector.wakeup();
+    }
+
+    @Override
+    public List<DatagramPort> receiveShards() {
+        return shards;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (DatagramPort shard : shards) {
+            shard.close();
+        }
+        selector.close();
+        channel.close();
+    }
+}
@@ -0,0 +1,50 @@
+package cs451;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class AgreementWindowTest {
+    private ConsensusData.ConsensusStage stage;
+    private AgreementWindow window;
+
+    @BeforeEach
+    void setUp() {
+        Map<Short, NodeAddress> hosts = new HashMap<>();
+        for (short id = 1; id <= 3; id++) {
+            NodeAddress host = new NodeAddress();
+            host.define(Short.toString(id), "127.0.0.1", Integer.toString(11000 + id));
+            hosts.put(id, host);
+        }
+        stage = new ConsensusData.ConsensusStage((short) 1, hosts, (m, dest) -> true, 0L);
+        window = stage.getWindow();
+    }
+
+    @Test
+    void agreementOpenedByAPeerWakesARefusedProposer() throws Exception {
+        long ticket = window.roomTicket();
+        stage.openAgreement(7);
+        assertNotEquals(ticket, window.roomTicket());
+
+        // opening it again changes nothing a proposer could be waiting for
+        long reopened = window.roomTicket();
+        stage.openAgreement(7);
+        assertEquals(reopened, window.roomTicket());
+
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> window.awaitRoom(ticket));
+    }
+
+    @Test
+    void refusedProposerRechecksEvenWithoutAnyEvent() {
+        long ticket = window.roomTicket();
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> window.awaitRoom(ticket));
+        assertEquals(ticket, window.roomTicket());
+    }
+}
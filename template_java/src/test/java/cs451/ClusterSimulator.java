@@ -0,0 +1,239 @@
+package cs451;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs n complete LatticeAgreement + PerfectLinks stacks in one JVM over a SimNetwork, on one
+ * thread and a virtual clock, so a run is reproducible from its seed. Each node proposes p
+ * random sets of up to vs values out of ds; the run ends once every node decided all of them.
+ * Reports throughput, per-agreement latency percentiles (submission to local decision),
+ * datagrams and bytes per decision, the retransmission ratio, and checks that all decisions
+ * of an agreement are comparable.
+ *
+ * Lives with the tests, out of the production jar. After mvn test-compile:
+ * java -cp target/classes:target/test-classes cs451.ClusterSimulator [n=5] [p=1000] [vs=10] [ds=50]
+ * [seed=1] [loss=0] [dup=0] [reorder=0] [latencyUs=100] [jitterUs=20] [limitSec=600]
+ */
+public class ClusterSimulator {
+    // clock step when something is due now but nothing could move
+    private static final long IDLE_TICK = TimeUnit.MICROSECONDS.toNanos(10);
+    private static final int MAX_PASSES_PER_INSTANT = 100_000;
+
+    private final int n;
+    private final int p;
+    private final SimNetwork net;
+    private final SimNode[] nodes;
+    private final long[] latencies;
+    private int latencyCount = 0;
+    private long decisions = 0;
+    private int violations = 0;
+    // agreement -> decisions so far, until all n are in and compared
+    private final HashMap<Integer, IntSet[]> pendingCheck = new HashMap<>();
+
+    public ClusterSimulator(int n, int p, int vs, int ds, long seed, SimNetwork.Conditions conditions) {
+        if (n <= 0 || p < 0 || vs <= 0 || ds < vs) {
+            throw new IllegalArgumentException("Need n > 0, p >= 0 and 0 < vs <= ds");
+        }
+        this.n = n;
+        this.p = p;
+        Random rnd = new Random(seed);
+        this.net = new SimNetwork(n, conditions, rnd);
+        Map<Short, NodeAddress> hosts = new HashMap<>();
+        for (short id = 1; id <= n; id++) {
+            NodeAddress host = new NodeAddress();
+            host.define(Short.toString(id), "127.0.0.1", Integer.toString(11000 + id));
+            hosts.put(id, host);
+        }
+        this.nodes = new SimNode[n + 1];
+        for (short id = 1; id <= n; id++) {
+            nodes[id] = new SimNode(id, hosts, randomProposals(rnd, vs, ds), ds);
+        }
+        this.latencies = new long[n * p];
+    }
+
+    private IntSet[] randomProposals(Random rnd, int vs, int ds) {
+        IntSet[] props = new IntSet[p];
+        int[] buf = new int[vs];
+        for (int i = 0; i < p; i++) {
+            int size = 1 + rnd.nextInt(vs);
+            for (int k = 0; k < size; k++) {
+                buf[k] = 1 + rnd.nextInt(ds);
+            }
+            props[i] = IntSet.fromUnsorted(Arrays.copyOf(buf, size), size);
+        }
+        return props;
+    }
+
+    private class SimNode implements SharedInterfaces.DecisionSink {
+        private final short id;
+        private final PerfectLinks link;
+        private final LatticeAgreement initiator;
+        private final LatticeAgreement follower;
+        private final ConsensusWorker[] workers;
+        private final IntSet[] proposals;
+        private final long[] submittedAt;
+        private int nextProposal = 0;
+        private int delivered = 0;
+
+        private SimNode(short id, Map<Short, NodeAddress> hosts, IntSet[] proposals, int ds) {
+            this.id = id;
+            this.proposals = proposals;
+            this.submittedAt = new long[proposals.length];
+            this.link = new PerfectLinks(id, hosts, ds, net.port(id), net);
+            this.initiator = new LatticeAgreement(id, hosts, link);
+            this.follower = new LatticeAgreement(id, hosts, this, null, initiator.snapshotConsensus(),
+                    initiator.snapshotChannel());
+            this.workers = initiator.snapshotConsensus().getWorkers();
+        }
+
+        // One pass over every stage of the node, true if any of them did something
+        private boolean step() throws IOException {
+            boolean progress = false;
+            while (nextProposal < proposals.length && initiator.submitProposal(nextProposal, proposals[nextProposal])) {
+                submittedAt[nextProposal++] = net.nanoTime();
+                progress = true;
+            }
+            for (ConsensusWorker w : workers) {
+                progress |= w.runPending();
+            }
+            progress |= follower.pumpOutcomes();
+            progress |= initiator.pumpBroadcasts();
+            long before = net.activity();
+            link.step();
+            return progress || net.activity() != before;
+        }
+
+        @Override
+        public void deliver(int agreementId, IntSet values) {
+            delivered++;
+            decisions++;
+            latencies[latencyCount++] = net.nanoTime() - submittedAt[agreementId];
+            check(agreementId, id, values);
+        }
+    }
+
+    // Lattice agreement: any two decisions of the same agreement are comparable
+    private void check(int agreementId, short node, IntSet values) {
+        IntSet[] seen = pendingCheck.computeIfAbsent(agreementId, k -> new IntSet[n + 1]);
+        seen[node] = values;
+        int count = 0;
+        for (short other = 1; other <= n; other++) {
+            if (seen[other] == null) {
+                continue;
+            }
+            count++;
+            if (other != node && !values.containsAll(seen[other]) && !seen[other].containsAll(values)) {
+                violations++;
+            }
+        }
+        if (count == n) {
+            pendingCheck.remove(agreementId);
+        }
+    }
+
+    private boolean done() {
+        for (short id = 1; id <= n; id++) {
+            if (nodes[id].delivered < p) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Runs until every node decided everything or the virtual time limit; true if it finished
+    public boolean run(long limitNanos) throws IOException {
+        while (!done() && net.nanoTime() < limitNanos) {
+            int passes = 0;
+            boolean progress = true;
+            while (progress && passes++ < MAX_PASSES_PER_INSTANT) {
+                progress = false;
+                for (short id = 1; id <= n; id++) {
+                    progress |= nodes[id].step();
+                }
+            }
+            if (done()) {
+                break;
+            }
+            long now = net.nanoTime();
+            long next = net.nextArrival();
+            for (short id = 1; id <= n; id++) {
+                next = Long.min(next, nodes[id].link.nextWakeup(now));
+            }
+            if (next == Long.MAX_VALUE) {
+                System.err.println("Simulation stalled at " + now + "ns: no message in flight and nothing scheduled");
+                return false;
+            }
+            net.advanceTo(Long.max(next, now + (next <= now ? IDLE_TICK : 0)));
+        }
+        return done();
+    }
+
+    public void report(long wallNanos) {
+        double seconds = net.nanoTime() / 1e9;
+        long sent = 0;
+        long resent = 0;
+        for (short id = 1; id <= n; id++) {
+            sent += nodes[id].link.sentMessages();
+            resent += nodes[id].link.retransmittedMessages();
+        }
+        long[] lat = Arrays.copyOf(latencies, latencyCount);
+        Arrays.sort(lat);
+        double perDecision = Long.max(1, decisions);
+        System.out.println("Simulated: n=" + n + " p=" + p + ", " + net);
+        System.out.printf("Virtual time %.3f s, wall time %.3f s%n", seconds, wallNanos / 1e9);
+        System.out.printf("Decisions: %d (%.1f/s), agreements decided everywhere: %.1f/s%n", decisions,
+                decisions / seconds, decisions / (double) n / seconds);
+        System.out.printf("Latency ms: p50=%.3f p90=%.3f p99=%.3f max=%.3f%n", percentile(lat, 0.50),
+                percentile(lat, 0.90), percentile(lat, 0.99), percentile(lat, 1.0));
+        System.out.printf("Per decision: %.2f datagrams, %.1f bytes, %.2f link messages%n",
+                net.datagrams() / perDecision, net.bytes() / perDecision, (sent + resent) / perDecision);
+        System.out.printf("Retransmission ratio: %.4f (%d of %d), network dropped %d, duplicated %d%n",
+                sent == 0 ? 0 : resent / (double) sent, resent, sent, net.dropped(), net.duplicated());
+        System.out.println("Consistency: " + (violations == 0 ? "OK" : violations + " incomparable decision pairs"));
+    }
+
+    private static double percentile(long[] sorted, double q) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int at = (int) Math.ceil(q * sorted.length) - 1;
+        return sorted[Integer.max(0, at)] / 1e6;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> opts = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            }
+            opts.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        int n = Integer.parseInt(opts.getOrDefault("n", "5"));
+        int p = Integer.parseInt(opts.getOrDefault("p", "1000"));
+        int vs = Integer.parseInt(opts.getOrDefault("vs", "10"));
+        int ds = Integer.parseInt(opts.getOrDefault("ds", "50"));
+        long seed = Long.parseLong(opts.getOrDefault("seed", "1"));
+        SimNetwork.Conditions conditions = new SimNetwork.Conditions(
+                Double.parseDouble(opts.getOrDefault("loss", "0")),
+                Double.parseDouble(opts.getOrDefault("dup", "0")),
+                Double.parseDouble(opts.getOrDefault("reorder", "0")),
+                TimeUnit.MICROSECONDS.toNanos(Long.parseLong(opts.getOrDefault("latencyUs", "100"))),
+                TimeUnit.MICROSECONDS.toNanos(Long.parseLong(opts.getOrDefault("jitterUs", "20"))));
+        long limit = TimeUnit.SECONDS.toNanos(Long.parseLong(opts.getOrDefault("limitSec", "600")));
+
+        ClusterSimulator sim = new ClusterSimulator(n, p, vs, ds, seed, conditions);
+        long start = System.nanoTime();
+        boolean finished = sim.run(limit);
+        sim.report(System.nanoTime() - start);
+        if (!finished) {
+            System.out.println("Did not finish within the virtual time limit");
+            System.exit(1);
+        }
+    }
+}
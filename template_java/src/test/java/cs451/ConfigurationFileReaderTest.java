@@ -0,0 +1,51 @@
+package cs451;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ConfigurationFileReaderTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void trailingBlankLinesAreFine() throws Exception {
+        try (ConfigurationFileReader.ProposalStream proposals = open("2 3 9\n1 2\n3\n\n \n")) {
+            assertEquals(IntSet.of(1, 2), proposals.next());
+            assertEquals(IntSet.of(3), proposals.next());
+            assertFalse(proposals.hasNext());
+        }
+    }
+
+    @Test
+    void proposalLinesBeyondPAreRejected() throws Exception {
+        try (ConfigurationFileReader.ProposalStream proposals = open("2 3 9\n1 2\n3\n\n4 5\n")) {
+            proposals.next();
+            assertThrows(IllegalArgumentException.class, proposals::next);
+        }
+    }
+
+    @Test
+    void missingProposalLinesAreRejected() throws Exception {
+        try (ConfigurationFileReader.ProposalStream proposals = open("3 3 9\n1 2\n3\n")) {
+            proposals.next();
+            proposals.next();
+            assertThrows(IllegalArgumentException.class, proposals::next);
+        }
+    }
+
+    private ConfigurationFileReader.ProposalStream open(String content) throws Exception {
+        Path config = dir.resolve("config");
+        Files.write(config, content.getBytes(StandardCharsets.US_ASCII));
+        ConfigurationFileReader reader = new ConfigurationFileReader();
+        reader.setConfigPath(config.toString());
+        return reader.obtainNestedConfig().openProposals();
+    }
+}
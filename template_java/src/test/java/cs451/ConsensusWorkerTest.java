@@ -0,0 +1,230 @@
+package cs451;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ConsensusWorkerTest {
+    private static final short SELF = 1;
+    private static final short PROPOSER = 2;
+    private static final int AGREEMENT = 0;
+
+    // every message the worker hands the link, bundles flattened into their parts
+    private final List<NetMessage> sent = new ArrayList<>();
+    private final List<Short> sentDests = new ArrayList<>();
+    // the destinations of every encode-once broadcast
+    private final List<BitSet> broadcasts = new ArrayList<>();
+    private final ByteArrayOutputStream errors = new ByteArrayOutputStream();
+    private PrintStream stderr;
+    private ConsensusData.ConsensusStage stage;
+    private ConsensusWorker worker;
+
+    @BeforeEach
+    void setUp() {
+        Map<Short, NodeAddress> hosts = new HashMap<>();
+        for (short id = 1; id <= 3; id++) {
+            NodeAddress host = new NodeAddress();
+            host.define(Short.toString(id), "127.0.0.1", Integer.toString(11000 + id));
+            hosts.put(id, host);
+        }
+        SharedInterfaces.MsgTransport link = new SharedInterfaces.MsgTransport() {
+            @Override
+            public boolean scheduleToSend(NetMessage m, short dest) {
+                List<NetMessage> parts = m.getBundled() == null ? List.of(m) : m.getBundled();
+                for (NetMessage part : parts) {
+                    sent.add(part);
+                    sentDests.add(dest);
+                }
+                return true;
+            }
+
+            @Override
+            public boolean broadcast(NetMessage m, BitSet dests) {
+                broadcasts.add((BitSet) dests.clone());
+                return SharedInterfaces.MsgTransport.super.broadcast(m, dests);
+            }
+        };
+        stage = new ConsensusData.ConsensusStage(SELF, hosts, link, 0L);
+        worker = stage.workerFor(AGREEMENT);
+        stderr = System.err;
+        System.setErr(new PrintStream(errors, true, StandardCharsets.UTF_8));
+    }
+
+    @AfterEach
+    void tearDown() {
+        System.setErr(stderr);
+    }
+
+    @Test
+    void deltaIsAnsweredAgainstItsBase() {
+        receive(1, NetMessage.PayLoadKind.PROPOSAL, IntSet.of(1, 2));
+        receive(2, NetMessage.PayLoadKind.PROPOSAL_DELTA, IntSet.of(3));
+
+        assertEquals(2, sent.size());
+        assertReply(sent.get(0), 1, NetMessage.PayLoadKind.ACK);
+        // {1, 2} plus the delta covers everything accepted so far
+        assertReply(sent.get(1), 2, NetMessage.PayLoadKind.ACK);
+    }
+
+    @Test
+    void staleDeltaOvertakenByTheNextRoundIsDroppedQuietly() {
+        // the proposer moved on to round 3 before our copy of its round 2 delta arrived
+        receive(1, NetMessage.PayLoadKind.PROPOSAL, IntSet.of(1));
+        receive(3, NetMessage.PayLoadKind.PROPOSAL, IntSet.of(1, 2, 3));
+        receive(2, NetMessage.PayLoadKind.PROPOSAL_DELTA, IntSet.of(2));
+
+        assertEquals(2, sent.size());
+        assertReply(sent.get(0), 1, NetMessage.PayLoadKind.ACK);
+        assertReply(sent.get(1), 3, NetMessage.PayLoadKind.ACK);
+        assertFalse(errors.toString(StandardCharsets.UTF_8).contains("without its base"), errors::toString);
+
+        // the stale delta left the round 3 base in place for the next one
+        receive(4, NetMessage.PayLoadKind.PROPOSAL_DELTA, IntSet.of(4));
+        assertEquals(3, sent.size());
+        assertReply(sent.get(2), 4, NetMessage.PayLoadKind.ACK);
+    }
+
+    @Test
+    void deltaWithoutAnyBaseIsAnsweredWithEverythingAccepted() {
+        receive(1, NetMessage.PayLoadKind.PROPOSAL, IntSet.of(1, 2));
+        worker.deliver(new NetMessage(NetMessage.EchoMarker.ECHOSTR, (short) 3, (short) 3, AGREEMENT, 2,
+                NetMessage.PayLoadKind.PROPOSAL_DELTA, IntSet.of(3)));
+        worker.runPending();
+
+        assertEquals(2, sent.size());
+        assertReply(sent.get(1), 2, NetMessage.PayLoadKind.NACK);
+        assertEquals(IntSet.of(1, 2), sent.get(1).getVals());
+        assertFalse(errors.toString(StandardCharsets.UTF_8).contains("without its base"), errors::toString);
+    }
+
+    @Test
+    void acceptorThatCouldNotReadOurDeltaGetsTheFullSetNextRound() {
+        worker.submit(AGREEMENT, IntSet.of(1));
+        worker.runPending();
+        // node 2 answers with nothing we lacked, as it does for a delta it has no base for
+        reply((short) 2, NetMessage.PayLoadKind.NACK, IntSet.of(1));
+        reply((short) 3, NetMessage.PayLoadKind.NACK, IntSet.of(5));
+
+        assertEquals(3, sent.size());
+        assertEquals(NetMessage.PayLoadKind.PROPOSAL, sentTo((short) 2).getPayloadType());
+        assertEquals(NetMessage.PayLoadKind.PROPOSAL_DELTA, sentTo((short) 3).getPayloadType());
+    }
+
+    @Test
+    void fullSetReproposalIsBroadcastOnceToEveryoneLackingItsBase() {
+        worker.submit(AGREEMENT, IntSet.of(1));
+        worker.runPending();
+        reply((short) 2, NetMessage.PayLoadKind.NACK, IntSet.of(1));
+        reply((short) 3, NetMessage.PayLoadKind.NACK, IntSet.of(5));
+
+        // we never answered ourselves and node 2 could not read the delta: one encoding for both
+        BitSet lacking = new BitSet();
+        lacking.set(SELF);
+        lacking.set(2);
+        assertEquals(List.of(lacking), broadcasts);
+        assertEquals(IntSet.of(1, 5), sentTo(SELF).getVals());
+        assertEquals(IntSet.of(5), sentTo((short) 3).getVals());
+    }
+
+    @Test
+    void proposerSuspectedWhileSlowIsStillAnsweredBelowTheBottom() {
+        receive(1, NetMessage.PayLoadKind.PROPOSAL, IntSet.of(1, 2));
+        // every live process decided: the bottom moves past the agreement without the proposer
+        stage.getWindowBottom().set(AGREEMENT + 1);
+        worker.runPending();
+        assertFalse(stage.isOpen(AGREEMENT));
+
+        receive(2, NetMessage.PayLoadKind.PROPOSAL, IntSet.of(1));
+        receive(3, NetMessage.PayLoadKind.PROPOSAL_DELTA, IntSet.of(2, 3));
+        assertEquals(3, sent.size());
+        assertReply(sent.get(1), 2, NetMessage.PayLoadKind.NACK);
+        assertEquals(IntSet.of(2), sent.get(1).getVals());
+        assertReply(sent.get(2), 3, NetMessage.PayLoadKind.ACK);
+
+        // once it confirmed deciding too, nothing is kept for it
+        stage.getConfirmedBottom().set(AGREEMENT + 1);
+        receive(4, NetMessage.PayLoadKind.PROPOSAL, IntSet.of(1, 2, 3, 4));
+        assertEquals(3, sent.size());
+    }
+
+    @Test
+    void retiredDeltaIsAnsweredWithEverythingAccepted() {
+        receive(1, NetMessage.PayLoadKind.PROPOSAL, IntSet.of(1, 2));
+        stage.getWindowBottom().set(AGREEMENT + 1);
+        worker.runPending();
+
+        // the delta bases went with the rest of the proposer-side state
+        receive(2, NetMessage.PayLoadKind.PROPOSAL_DELTA, IntSet.of(3));
+        assertEquals(2, sent.size());
+        assertReply(sent.get(1), 2, NetMessage.PayLoadKind.NACK);
+        assertEquals(IntSet.of(1, 2), sent.get(1).getVals());
+    }
+
+    @Test
+    void agreementsFarBelowTheBottomAreForgottenEvenIfNeverConfirmed() {
+        receive(1, NetMessage.PayLoadKind.PROPOSAL, IntSet.of(1));
+        // a crashed process never confirms: the retired span alone bounds what is kept
+        stage.getWindowBottom().set(AGREEMENT + 1 + GlobalParams.LA_RETIRED_SPAN);
+        worker.runPending();
+
+        receive(2, NetMessage.PayLoadKind.PROPOSAL, IntSet.of(1, 2));
+        assertEquals(1, sent.size());
+    }
+
+    private void receive(int round, NetMessage.PayLoadKind kind, IntSet vals) {
+        worker.deliver(new NetMessage(NetMessage.EchoMarker.ECHOSTR, PROPOSER, PROPOSER, AGREEMENT, round, kind, vals));
+        worker.runPending();
+    }
+
+    @Test
+    void roundsCountOnlyOurOwnProposals() {
+        Metrics.Histogram rounds = Metrics.global().histogram("la.rounds_per_agreement");
+        long decided = rounds.count();
+        // a peer already went through several rounds before we proposed
+        receive(5, NetMessage.PayLoadKind.PROPOSAL, IntSet.of(1));
+        worker.submit(AGREEMENT, IntSet.of(1));
+        worker.runPending();
+        worker.deliver(new NetMessage(NetMessage.EchoMarker.ECHOSTR, (short) 3, (short) 3, AGREEMENT, 6,
+                NetMessage.PayLoadKind.ACK, null));
+        worker.deliver(new NetMessage(NetMessage.EchoMarker.ECHOSTR, SELF, SELF, AGREEMENT, 6,
+                NetMessage.PayLoadKind.ACK, null));
+        worker.runPending();
+
+        assertEquals(decided + 1, rounds.count());
+        assertEquals(1, rounds.max());
+    }
+
+    private void reply(short from, NetMessage.PayLoadKind kind, IntSet vals) {
+        worker.deliver(new NetMessage(NetMessage.EchoMarker.ECHOSTR, from, from, AGREEMENT, 1, kind, vals));
+        worker.runPending();
+    }
+
+    private NetMessage sentTo(short dest) {
+        NetMessage found = null;
+        for (int i = 0; i < sent.size(); i++) {
+            if (sentDests.get(i) == dest) {
+                found = sent.get(i);
+            }
+        }
+        return found;
+    }
+
+    private static void assertReply(NetMessage reply, int round, NetMessage.PayLoadKind kind) {
+        assertEquals(kind, reply.getPayloadType(), reply::toString);
+        assertEquals(round, reply.getActivePropNumber(), reply::toString);
+        assertEquals(SELF, reply.getSourceId(), reply::toString);
+    }
+}
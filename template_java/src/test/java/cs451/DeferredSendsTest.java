@@ -0,0 +1,79 @@
+package cs451;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class DeferredSendsTest {
+    private static final short SELF = 1;
+    private static final short CRASHED = 3;
+    private static final int WINDOW = 8;
+
+    private int decidedBelow = 0;
+    private boolean crashed = true;
+    // what the crashed peer got once it came back, bundles flattened into their parts
+    private final List<NetMessage> toCrashed = new ArrayList<>();
+
+    private final SharedInterfaces.MsgTransport link = (m, dest) -> {
+        if (dest != CRASHED) {
+            return true;
+        }
+        if (crashed) {
+            return false;
+        }
+        if (m.getBundled() == null) {
+            toCrashed.add(m);
+        } else {
+            toCrashed.addAll(m.getBundled());
+        }
+        return true;
+    };
+
+    @Test
+    void backlogForACrashedPeerStaysBoundedByTheOpenAgreements() {
+        DeferredSends sends = new DeferredSends(link, () -> decidedBelow);
+        // it crashed after proposing for the first agreements: our answers to those are owed
+        for (int agId = 0; agId < 4; agId++) {
+            sends.sendOrDefer(message(agId, NetMessage.PayLoadKind.ACK), CRASHED);
+        }
+        int peak = 0;
+        for (int agId = 0; agId < 10_000; agId++) {
+            sends.broadcastOrDefer(message(agId, NetMessage.PayLoadKind.PROPOSAL), everyone());
+            List<NetMessage> parts = new ArrayList<>();
+            parts.add(message(agId, NetMessage.PayLoadKind.PROPOSAL));
+            parts.add(message(agId, NetMessage.PayLoadKind.PROPOSAL_DELTA));
+            sends.sendOrDefer(NetMessage.bundle(SELF, agId, parts), CRASHED);
+            decidedBelow = Integer.max(0, agId - WINDOW);
+            sends.retry();
+            peak = Integer.max(peak, sends.backlog());
+        }
+        assertTrue(peak <= 4 + 2 * (WINDOW + 1), "backlog grew to " + peak);
+
+        // back after all: every owed reply is still there, the proposals are only for open agreements
+        crashed = false;
+        sends.retry();
+        assertTrue(sends.isEmpty());
+        long replies = toCrashed.stream().filter(m -> m.getPayloadType() == NetMessage.PayLoadKind.ACK).count();
+        assertEquals(4, replies);
+        for (NetMessage m : toCrashed) {
+            assertTrue(m.getPayloadType() == NetMessage.PayLoadKind.ACK || m.getAgreementId() >= decidedBelow,
+                    m::toString);
+        }
+    }
+
+    private static NetMessage message(int agId, NetMessage.PayLoadKind kind) {
+        return new NetMessage(NetMessage.EchoMarker.ECHOSTR, SELF, SELF, agId, 1, kind,
+                kind == NetMessage.PayLoadKind.ACK ? null : IntSet.of(agId));
+    }
+
+    private static BitSet everyone() {
+        BitSet dests = new BitSet();
+        dests.set(1, 4);
+        return dests;
+    }
+}
@@ -0,0 +1,35 @@
+package cs451;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class LatticeAgreementTest {
+    @Test
+    void agreementsOpenedFarAheadByPeersLeaveRoomAboveOurDecisions() {
+        Map<Short, NodeAddress> hosts = new HashMap<>();
+        for (short id = 1; id <= 3; id++) {
+            NodeAddress host = new NodeAddress();
+            host.define(Short.toString(id), "127.0.0.1", Integer.toString(11000 + id));
+            hosts.put(id, host);
+        }
+        SimNetwork net = new SimNetwork(3, new SimNetwork.Conditions(0, 0, 0, 0, 0), new Random(1));
+        PerfectLinks link = new PerfectLinks((short) 1, hosts, 10, net.port((short) 1), net);
+        LatticeAgreement la = new LatticeAgreement((short) 1, hosts, link);
+        ConsensusData.ConsensusStage stage = la.snapshotConsensus();
+        int window = stage.getWindow().current();
+
+        // we fell behind: the peers' proposals opened a full window of agreements we have not reached
+        for (int agId = 1000; agId < 1000 + window; agId++) {
+            stage.openAgreement(agId);
+        }
+        assertTrue(la.submitProposal(0, IntSet.of(1)));
+        assertTrue(la.submitProposal(window - 1, IntSet.of(1)));
+        assertFalse(la.submitProposal(window, IntSet.of(1)));
+    }
+}
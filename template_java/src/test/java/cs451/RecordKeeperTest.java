@@ -0,0 +1,65 @@
+package cs451;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class RecordKeeperTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void recordLargerThanABufferKeepsItsPlaceAmongTheOthers() throws Exception {
+        Path out = dir.resolve("1.output");
+        RecordKeeper rec = new RecordKeeper(out.toString());
+        byte[] big = line(GlobalParams.REC_BUFFER_BYTES + 100, 'b');
+
+        rec.addLog("1 2 3\n");
+        rec.addLog(big, 0, big.length);
+        rec.addLog("4 5\n");
+        rec.flushAndClose();
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write("1 2 3\n".getBytes(StandardCharsets.US_ASCII));
+        expected.write(big);
+        expected.write("4 5\n".getBytes(StandardCharsets.US_ASCII));
+        assertArrayEquals(expected.toByteArray(), Files.readAllBytes(out));
+    }
+
+    @Test
+    void closingWhileLargeRecordsAreAddedNeverCutsOneShort() throws Exception {
+        Path out = dir.resolve("2.output");
+        RecordKeeper rec = new RecordKeeper(out.toString());
+        byte[] big = line(GlobalParams.REC_BUFFER_BYTES * 2 + 100, 'x');
+        Thread producer = new Thread(() -> {
+            try {
+                for (int i = 0; i < 8; i++) {
+                    rec.addLog(big, 0, big.length);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        producer.start();
+        Thread.sleep(5);
+        rec.flushAndClose();
+        producer.join();
+
+        assertEquals(0, Files.size(out) % big.length, "partial record in output");
+    }
+
+    private static byte[] line(int length, char c) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) c);
+        bytes[length - 1] = '\n';
+        return bytes;
+    }
+}
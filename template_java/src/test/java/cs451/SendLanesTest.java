@@ -0,0 +1,33 @@
+package cs451;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class SendLanesTest {
+    private static final short DEST = 2;
+
+    @Test
+    void repliesGoOutWhileTheCongestionWindowIsFull() {
+        SendLanes lanes = new SendLanes();
+        NetMessage.NetCarrier proposal = carrier(NetMessage.PayLoadKind.PROPOSAL);
+        NetMessage.NetCarrier reply = carrier(NetMessage.PayLoadKind.NACK);
+        lanes.offer(proposal);
+        lanes.offer(reply);
+
+        assertTrue(lanes.hasSendable(false));
+        assertSame(reply, lanes.take(false));
+        // our own proposals still wait for room in the window
+        assertFalse(lanes.hasSendable(false));
+        assertNull(lanes.take(false));
+        assertSame(proposal, lanes.take(true));
+    }
+
+    private static NetMessage.NetCarrier carrier(NetMessage.PayLoadKind kind) {
+        return new NetMessage(NetMessage.EchoMarker.ECHOSTR, (short) 1, (short) 1, 0, 1, kind, IntSet.of(1))
+                .toSend(DEST, true);
+    }
+}
@@ -0,0 +1,212 @@
+package cs451;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * In-memory network for the cluster simulator, with its own virtual clock. Every datagram
+ * independently may be lost, duplicated or held back (reordered), and otherwise arrives after
+ * a base latency plus an exponentially distributed jitter. All randomness comes from one
+ * seeded Random and ties are broken by send order, so a run only depends on its seed.
+ * Single-threaded: the simulator drives the nodes, the clock and delivery itself.
+ */
+public class SimNetwork implements SharedInterfaces.Clock {
+
+    /**
+     * Link conditions; probabilities in [0, 1], times in nanoseconds.
+     */
+    public static class Conditions {
+        private final double loss;
+        private final double duplicate;
+        private final double reorder;
+        private final long latency;
+        private final long jitter;
+
+        public Conditions(double loss, double duplicate, double reorder, long latency, long jitter) {
+            if (loss < 0 || loss >= 1 || duplicate < 0 || duplicate > 1 || reorder < 0 || reorder > 1) {
+                throw new IllegalArgumentException("Probabilities must be in [0, 1), loss below 1");
+            }
+            if (latency < 0 || jitter < 0) {
+                throw new IllegalArgumentException("Negative latency");
+            }
+            this.loss = loss;
+            this.duplicate = duplicate;
+            this.reorder = reorder;
+            this.latency = latency;
+            this.jitter = jitter;
+        }
+
+        @Override
+        public String toString() {
+            return "Conditions [loss=" + loss + ", duplicate=" + duplicate + ", reorder=" + reorder
+                    + ", latency=" + latency + "ns, jitter=" + jitter + "ns]";
+        }
+    }
+
+    private static class InFlight implements Comparable<InFlight> {
+        private final long arrival;
+        private final long order;
+        private final short source;
+        private final short dest;
+        private final byte[] data;
+
+        private InFlight(long arrival, long order, short source, short dest, byte[] data) {
+            this.arrival = arrival;
+            this.order = order;
+            this.source = source;
+            this.dest = dest;
+            this.data = data;
+        }
+
+        @Override
+        public int compareTo(InFlight o) {
+            int c = Long.compare(arrival, o.arrival);
+            return c != 0 ? c : Long.compare(order, o.order);
+        }
+    }
+
+    private final Conditions conditions;
+    private final Random rnd;
+    private final PriorityQueue<InFlight> inFlight = new PriorityQueue<>();
+    private final Port[] ports;
+    private long now = 0;
+    private long sendOrder = 0;
+
+    // sends and receives so far, lets the simulator see whether a step did anything
+    private long activity = 0;
+    private long datagrams = 0;
+    private long bytes = 0;
+    private long dropped = 0;
+    private long duplicated = 0;
+
+    public SimNetwork(int nodes, Conditions conditions, Random rnd) {
+        this.conditions = conditions;
+        this.rnd = rnd;
+        this.ports = new Port[nodes + 1];
+        for (short id = 1; id <= nodes; id++) {
+            ports[id] = new Port(id);
+        }
+    }
+
+    @Override
+    public long nanoTime() {
+        return now;
+    }
+
+    public DatagramPort port(short id) {
+        return ports[id];
+    }
+
+    // Earliest arrival still in flight, Long.MAX_VALUE if the network is empty
+    public long nextArrival() {
+        InFlight next = inFlight.peek();
+        return next == null ? Long.MAX_VALUE : next.arrival;
+    }
+
+    public void advanceTo(long time) {
+        if (time < now) {
+            throw new IllegalArgumentException("The clock only moves forward");
+        }
+        now = time;
+        while (!inFlight.isEmpty() && inFlight.peek().arrival <= now) {
+            InFlight d = inFlight.poll();
+            ports[d.dest].arrived.add(d);
+        }
+    }
+
+    public long activity() {
+        return activity;
+    }
+
+    public long datagrams() {
+        return datagrams;
+    }
+
+    public long bytes() {
+        return bytes;
+    }
+
+    public long dropped() {
+        return dropped;
+    }
+
+    public long duplicated() {
+        return duplicated;
+    }
+
+    private void transmit(ByteBuffer datagram, short source, short dest) {
+        byte[] data = new byte[datagram.remaining()];
+        datagram.get(data);
+        activity++;
+        datagrams++;
+        bytes += data.length;
+        if (rnd.nextDouble() < conditions.loss) {
+            dropped++;
+            return;
+        }
+        schedule(source, dest, data);
+        if (rnd.nextDouble() < conditions.duplicate) {
+            duplicated++;
+            schedule(source, dest, data);
+        }
+    }
+
+    private void schedule(short source, short dest, byte[] data) {
+        long delay = conditions.latency;
+        if (conditions.jitter > 0) {
+            delay += (long) (-Math.log(1 - rnd.nextDouble()) * conditions.jitter);
+        }
+        if (rnd.nextDouble() < conditions.reorder) {
+            // overtaken by whatever is sent within the next latency
+            delay += conditions.latency + rnd.nextInt(1 + (int) Long.min(Integer.MAX_VALUE - 1, conditions.latency));
+        }
+        inFlight.add(new InFlight(now + delay, sendOrder++, source, dest, data));
+    }
+
+    private class Port implements DatagramPort {
+        private final short id;
+        private final ArrayDeque<InFlight> arrived = new ArrayDeque<>();
+
+        private Port(short id) {
+            this.id = id;
+        }
+
+        @Override
+        public boolean send(ByteBuffer datagram, short dest) {
+            transmit(datagram, id, dest);
+            return true;
+        }
+
+        @Override
+        public short receive(ByteBuffer buff) {
+            InFlight d = arrived.poll();
+            if (d == null) {
+                return -1;
+            }
+            buff.put(d.data);
+            activity++;
+            return d.source;
+        }
+
+        // the simulator moves the clock, so there is never anything to wait for
+        @Override
+        public void await(boolean wantRead, boolean wantWrite, long deadline, long now) {
+        }
+
+        @Override
+        public void wakeup() {
+        }
+
+        @Override
+        public void close() {
+            arrived.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SimNetwork [now=" + now + ", inFlight=" + inFlight.size() + ", " + conditions + "]";
+    }
+}
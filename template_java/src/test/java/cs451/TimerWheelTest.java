@@ -0,0 +1,64 @@
+package cs451;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class TimerWheelTest {
+    private static final long TICK = 1_000L;
+
+    private static class Probe extends TimerWheel.Timeout {
+    }
+
+    @Test
+    void timeoutDueLaterInTheCurrentTickFiresWithinThatTick() {
+        TimerWheel wheel = new TimerWheel(8, TICK, 0L);
+        Probe t = new Probe();
+        wheel.schedule(t, 1_500L);
+
+        // same tick as the deadline, but before it: nothing fires yet
+        assertEquals(0, wheel.expire(1_200L, x -> { }));
+        assertTrue(t.isScheduled());
+
+        // used to wait a whole rotation, as the tick had already been marked processed
+        List<TimerWheel.Timeout> fired = new ArrayList<>();
+        assertEquals(1, wheel.expire(1_600L, fired::add));
+        assertEquals(List.of(t), fired);
+        assertFalse(t.isScheduled());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void nextExpiryStillReportsThePartlyProcessedTick() {
+        TimerWheel wheel = new TimerWheel(8, TICK, 0L);
+        wheel.schedule(new Probe(), 1_500L);
+        wheel.expire(1_200L, x -> { });
+        assertEquals(1_000L, wheel.nextExpiry());
+    }
+
+    @Test
+    void timeoutBeyondOneRotationWaitsForItsDeadline() {
+        TimerWheel wheel = new TimerWheel(8, TICK, 0L);
+        Probe t = new Probe();
+        wheel.schedule(t, 10_500L);
+
+        assertEquals(0, wheel.expire(2_500L, x -> { }));
+        assertEquals(0, wheel.expire(9_000L, x -> { }));
+        assertEquals(1, wheel.expire(10_600L, x -> { }));
+    }
+
+    @Test
+    void cancelledTimeoutNeverFires() {
+        TimerWheel wheel = new TimerWheel(8, TICK, 0L);
+        Probe t = new Probe();
+        wheel.schedule(t, 1_500L);
+        t.cancel();
+        assertEquals(0, wheel.expire(5_000L, x -> { }));
+        assertEquals(Long.MAX_VALUE, wheel.nextExpiry());
+    }
+}